@@ -0,0 +1,57 @@
+package foundation.privacybydesign.sms;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Canonicalizing phone numbers: checking every allowed region in turn (as
+ * it used to be), looking up the region of the number, and the cached result.
+ * A Swiss number is near the end of the list of regions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhoneNumberBenchmark {
+    private static final String PHONE = "+41781234567";
+    private static final PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
+    private static final String[] countries = {
+            "AT", "BE", "BG", "CY", "DK", "DE", "EE", "FI", "FR", "GR", "HU", "IE",
+            "IS", "IT", "HR", "LV", "LT", "LI", "LU", "MT", "MC", "NL", "NO", "AT",
+            "PL", "PT", "RO", "SI", "SK", "ES", "CZ", "GB", "SE", "CH"
+    };
+
+    @Benchmark
+    public String regionLoop() throws NumberParseException {
+        Phonenumber.PhoneNumber number = phoneUtil.parse(PHONE, null);
+        for (String country : countries) {
+            if (phoneUtil.isValidNumberForRegion(number, country)) {
+                PhoneNumberUtil.PhoneNumberType type = phoneUtil.getNumberType(number);
+                if (type == PhoneNumberUtil.PhoneNumberType.MOBILE ||
+                        type == PhoneNumberUtil.PhoneNumberType.FIXED_LINE_OR_MOBILE ||
+                        type == PhoneNumberUtil.PhoneNumberType.UNKNOWN)
+                    return phoneUtil.format(number, PhoneNumberUtil.PhoneNumberFormat.E164);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String regionLookup() throws Exception {
+        return SMSRestApi.canonicalize(PHONE);
+    }
+
+    @Benchmark
+    public String cached() throws Exception {
+        return SMSRestApi.canonicalPhoneNumber(PHONE);
+    }
+}
@@ -0,0 +1,62 @@
+package foundation.privacybydesign.sms.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HMAC of a phone number: with a new Mac and Base64 encoded (as it used
+ * to be), with the per-thread Mac as HmacDigest, with Base64 encoding on top
+ * (as the original Redis key format needs) and into a caller's buffer. Run
+ * with the gc profiler to compare the allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HmacBenchmark {
+    private static final byte[] KEY = new byte[32];
+    private static final String PHONE = "+31612345678";
+
+    private SecretKeySpec secretKey;
+    private Hmac hmac;
+    private final byte[] out = new byte[Hmac.LENGTH];
+
+    @Setup
+    public void setup() {
+        secretKey = new SecretKeySpec(KEY, "HmacSHA256");
+        hmac = new Hmac(KEY);
+    }
+
+    @Benchmark
+    public String newMac() throws Exception {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(secretKey);
+        return Base64.getEncoder().encodeToString(mac.doFinal(PHONE.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public HmacDigest createHmac() {
+        return hmac.createHmac(PHONE);
+    }
+
+    @Benchmark
+    public String createHmacBase64() {
+        return hmac.createHmac(PHONE).toString();
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        hmac.digest(PHONE, out, 0);
+        return out;
+    }
+}
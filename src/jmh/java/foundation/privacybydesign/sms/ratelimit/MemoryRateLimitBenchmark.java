@@ -0,0 +1,96 @@
+package foundation.privacybydesign.sms.ratelimit;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the lock striped MemoryRateLimit with 1 to 64 threads,
+ * compared to the old implementation that synchronized every call on the
+ * instance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MemoryRateLimitBenchmark {
+    private static final int KEYS = 1 << 16;
+
+    private HmacDigest[] keys;
+    private RateLimit striped;
+    private RateLimit synchronizedLimit;
+
+    @Setup
+    public void setup() {
+        Hmac hmac = new Hmac(new byte[32]);
+        keys = new HmacDigest[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = hmac.createHmac(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        }
+        striped = new MemoryRateLimit();
+        synchronizedLimit = new SynchronizedMemoryRateLimit();
+    }
+
+    private long run(RateLimit rateLimit) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return rateLimit.checkAndCount(keys[random.nextInt(KEYS)], keys[random.nextInt(KEYS)],
+                System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long striped1() {
+        return run(striped);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long striped4() {
+        return run(striped);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long striped16() {
+        return run(striped);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long striped64() {
+        return run(striped);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long synchronized1() {
+        return run(synchronizedLimit);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long synchronized4() {
+        return run(synchronizedLimit);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long synchronized16() {
+        return run(synchronizedLimit);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long synchronized64() {
+        return run(synchronizedLimit);
+    }
+}
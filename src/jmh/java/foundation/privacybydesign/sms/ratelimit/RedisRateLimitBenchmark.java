@@ -0,0 +1,116 @@
+package foundation.privacybydesign.sms.ratelimit;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of RedisRateLimit with 1 to 64 concurrent request threads,
+ * compared to the same calls serialized behind one JVM-wide lock (as the
+ * synchronized methods used to do).
+ *
+ * Needs a Redis Sentinel or Cluster, configured with the same environment variables as
+ * the server (see the README). Use a separate REDIS_KEY_PREFIX: every call
+ * writes new keys, which expire after 5 days.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RedisRateLimitBenchmark {
+    private static final Hmac HMAC = new Hmac(new byte[32]);
+
+    private RedisRateLimit limiter;
+    private RateLimit locked;
+
+    /**
+     * The old behaviour: only one thread at a time talks to Redis.
+     */
+    static class LockedRateLimit extends RateLimit {
+        private final RedisRateLimit limiter;
+
+        LockedRateLimit(RedisRateLimit limiter) {
+            this.limiter = limiter;
+        }
+
+        @Override
+        protected synchronized long checkAndCount(HmacDigest ipHash, HmacDigest phoneHash, long now) {
+            return limiter.checkAndCount(ipHash, phoneHash, now);
+        }
+
+        @Override
+        public void periodicCleanup() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        limiter = new RedisRateLimit();
+        locked = new LockedRateLimit(limiter);
+    }
+
+    private static long run(RateLimit rateLimit) {
+        // Random keys, so requests are never rate limited and don't contend
+        // on the same key.
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return rateLimit.checkAndCount(HMAC.createHmac(Long.toHexString(random.nextLong())),
+                HMAC.createHmac(Long.toHexString(random.nextLong())), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long scripted1() {
+        return run(limiter);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long scripted4() {
+        return run(limiter);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long scripted16() {
+        return run(limiter);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long scripted64() {
+        return run(limiter);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long locked1() {
+        return run(locked);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long locked4() {
+        return run(locked);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long locked16() {
+        return run(locked);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long locked64() {
+        return run(locked);
+    }
+}
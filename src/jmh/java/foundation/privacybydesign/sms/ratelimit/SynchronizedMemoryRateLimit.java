@@ -0,0 +1,158 @@
+package foundation.privacybydesign.sms.ratelimit;
+
+import foundation.privacybydesign.sms.common.HmacDigest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MemoryRateLimit as it was before lock striping: every method synchronized
+ * on the instance and the limits updated in place. Only used as the
+ * baseline in MemoryRateLimitBenchmark.
+ */
+class SynchronizedMemoryRateLimit extends RateLimit {
+    private static final long SECOND = 1000; // 1000ms = 1s
+    private static final long MINUTE = SECOND * 60;
+    private static final long HOUR = MINUTE * 60;
+    private static final long DAY = HOUR * 24;
+    private static final int IP_TIMEOUT = 10 * 1000; // timeout in seconds
+    private static final int IP_TRIES = 3; // number of tries on first visit
+
+    private final Map<HmacDigest, Long> ipLimits;
+    private final Map<HmacDigest, MutableLimit> phoneLimits;
+
+    SynchronizedMemoryRateLimit() {
+        ipLimits = new ConcurrentHashMap<>();
+        phoneLimits = new ConcurrentHashMap<>();
+    }
+
+    private long startLimitIP(long now) {
+        return now - IP_TIMEOUT * IP_TRIES;
+    }
+
+    @Override
+    protected synchronized long checkAndCount(HmacDigest ipHash, HmacDigest phoneHash, long now) {
+        long ipRetryAfter = nextTryIP(ipHash, now);
+        long phoneRetryAfter = nextTryPhone(phoneHash, now);
+        long retryAfter = Math.max(ipRetryAfter, phoneRetryAfter);
+        if (retryAfter > now) {
+            // Don't count this request if it has been denied.
+            return retryAfter;
+        }
+        countIP(ipHash, now);
+        countPhone(phoneHash, now);
+        return 0;
+    }
+
+    protected synchronized long nextTryIP(HmacDigest ip, long now) {
+        // Allow at most 1 try in each period (TIMEOUT), but kick in only
+        // after 3 tries. Thus while the user can do only 1 try per period
+        // over longer periods, the initial budget is 3 periods.
+        long limit = 0; // First try - last try was "long in the past".
+        if (ipLimits.containsKey(ip)) {
+            // Ah, there was a request before.
+            limit = ipLimits.get(ip);
+        }
+
+        long startLimit = startLimitIP(now);
+        if (limit < startLimit) {
+            // First visit or previous visit was long ago.
+            // Act like the last try was 3 periods ago.
+            limit = startLimit;
+        }
+
+        // Add a period to the current limit.
+        limit += IP_TIMEOUT;
+        return limit;
+    }
+
+    protected synchronized void countIP(HmacDigest ipHash, long now) {
+        long nextTry = nextTryIP(ipHash, now);
+        if (nextTry > now) {
+            throw new IllegalStateException("counting rate limit while over the limit");
+        }
+        ipLimits.put(ipHash, nextTry);
+    }
+
+    // Is the user over the rate limit per phone number?
+    protected synchronized long nextTryPhone(HmacDigest phoneHash, long now) {
+        // Rate limiter durations (sort-of logarithmic):
+        // 1 10 second
+        // 2 5 minute
+        // 3 1 hour
+        // 4 24 hour
+        // 5+ 1 per day
+        // Keep log 5 days for proper limiting.
+
+        MutableLimit limit = phoneLimits.get(phoneHash);
+        if (limit == null) {
+            limit = new MutableLimit(now);
+            phoneLimits.put(phoneHash, limit);
+        }
+        long nextTry; // timestamp when the next request is allowed
+        switch (limit.tries) {
+            case 0: // try 1: always succeeds
+                nextTry = limit.timestamp;
+                break;
+            case 1: // try 2: allowed after 10 seconds
+                nextTry = limit.timestamp + 10 * SECOND;
+                break;
+            case 2: // try 3: allowed after 5 minutes
+                nextTry = limit.timestamp + 5 * MINUTE;
+                break;
+            case 3: // try 4: allowed after 3 hours
+                nextTry = limit.timestamp + 3 * HOUR;
+                break;
+            default: // try 5 and later: allowed after 24 hours
+                nextTry = limit.timestamp + 24 * HOUR;
+                break;
+        }
+        return nextTry;
+    }
+
+    // Count the usage of this rate limit - adding to the budget for this
+    // phone number.
+    protected synchronized void countPhone(HmacDigest phoneHash, long now) {
+        long nextTry = nextTryPhone(phoneHash, now);
+        MutableLimit limit = phoneLimits.get(phoneHash);
+        if (nextTry > now) {
+            throw new IllegalStateException("counting rate limit while over the limit");
+        }
+        limit.tries = Math.min(limit.tries + 1, 5); // add 1, max at 5
+        // If the last usage was e.g. ≥2 days ago, we should allow them 2 tries
+        // extra tries this day.
+        long lastTryDaysAgo = (now - limit.timestamp) / DAY;
+        long bonusTries = limit.tries - lastTryDaysAgo;
+        if (bonusTries >= 1) {
+            limit.tries = (int) bonusTries;
+        }
+        limit.timestamp = now;
+    }
+
+    @Override
+    public void periodicCleanup() {
+        long now = System.currentTimeMillis();
+        // Use enhanced for loop, because an iterator makes sure concurrency issues
+        // cannot occur.
+        for (Map.Entry<HmacDigest, Long> entry : ipLimits.entrySet()) {
+            if (entry.getValue() < startLimitIP(now)) {
+                ipLimits.remove(entry.getKey());
+            }
+        }
+        for (Map.Entry<HmacDigest, MutableLimit> entry : phoneLimits.entrySet()) {
+            if (entry.getValue().timestamp < now - 5 * DAY) {
+                phoneLimits.remove(entry.getKey());
+            }
+        }
+    }
+}
+
+class MutableLimit {
+    long timestamp;
+    int tries;
+
+    MutableLimit(long now) {
+        tries = 0;
+        timestamp = now;
+    }
+}
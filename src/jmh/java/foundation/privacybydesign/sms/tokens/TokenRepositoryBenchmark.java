@@ -0,0 +1,63 @@
+package foundation.privacybydesign.sms.tokens;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing and verifying a token in the Caffeine based repository and in the
+ * compact one. Run with the gc profiler to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenRepositoryBenchmark {
+    private static final int KEYS = 1 << 16;
+    private static final long VALIDITY = 30 * 60 * 1000;
+
+    private HmacDigest[] keys;
+    private TokenRequest request;
+    private TokenRequestRepository memory;
+    private TokenRequestRepository compact;
+
+    @Setup
+    public void setup() throws Exception {
+        Hmac hmac = new Hmac(new byte[32]);
+        keys = new HmacDigest[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = hmac.createHmac("+316" + (10000000 + i));
+        }
+        request = new TokenRequest("ABCDEF");
+        memory = new InMemoryTokenRequestRepository(VALIDITY, 1000000);
+        compact = new CompactTokenRequestRepository(VALIDITY, 1000000);
+        for (HmacDigest key : keys) {
+            memory.store(key, request);
+            compact.store(key, request);
+        }
+    }
+
+    private VerificationResult run(TokenRequestRepository repo) {
+        HmacDigest key = keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        repo.store(key, request);
+        return repo.verify(key, "ABCDEF", VALIDITY);
+    }
+
+    @Benchmark
+    public VerificationResult memory() {
+        return run(memory);
+    }
+
+    @Benchmark
+    public VerificationResult compact() {
+        return run(compact);
+    }
+}
@@ -5,6 +5,8 @@ public class CMGatewayConfiguration {
     private String api_endpoint = "";
     private String product_token = "";
     private String reference = "";
+    private int bulk_size = 50;
+    private int bulk_linger_ms = 20;
 
     public String getFrom() {
         return from;
@@ -21,4 +23,19 @@ public class CMGatewayConfiguration {
     public String getReference() {
         return reference;
     }
+
+    /**
+     * Maximum number of messages combined into one request in bulk mode.
+     */
+    public int getBulkSize() {
+        return bulk_size;
+    }
+
+    /**
+     * How long to wait for more messages before sending a partial batch in
+     * bulk mode, in milliseconds.
+     */
+    public int getBulkLingerMillis() {
+        return bulk_linger_ms;
+    }
 }
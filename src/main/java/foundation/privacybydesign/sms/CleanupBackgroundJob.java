@@ -1,6 +1,7 @@
 package foundation.privacybydesign.sms;
 
 import foundation.privacybydesign.sms.ratelimit.RateLimitUtils;
+import foundation.privacybydesign.sms.redis.Redis;
 import foundation.privacybydesign.sms.tokens.TokenManager;
 
 import org.slf4j.Logger;
@@ -14,7 +15,13 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Clean up in-memory data structures once in a while.
+ * Clean up in-memory data structures once in a while. The in-memory stores
+ * expire their entries by themselves, so for them this only logs their
+ * statistics.
+ *
+ * Redis keys expire by themselves, so with Redis storage there is nothing
+ * to clean up. Only when REDIS_MIGRATE_EXPIRY is set, keys stored by older
+ * versions are given an expiry, once.
  */
 @WebListener
 public class CleanupBackgroundJob implements ServletContextListener {
@@ -23,10 +30,27 @@ public class CleanupBackgroundJob implements ServletContextListener {
 
     @Override
     public void contextInitialized(ServletContextEvent event) {
-        logger.info("Setting up background cleanup task");
         scheduler = Executors.newSingleThreadScheduledExecutor();
+        if ("redis".equals(System.getenv("STORAGE_TYPE"))) {
+            if (Redis.migratesExpiry()) {
+                logger.info("Setting up one-time expiry migration of Redis keys");
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TokenManager.getInstance().addMissingExpiry();
+                            RateLimitUtils.getRateLimiter().addMissingExpiry();
+                        } catch (Exception e) {
+                            logger.error("Failed to migrate the expiry of Redis keys:");
+                            e.printStackTrace();
+                        }
+                    }
+                }, 1, TimeUnit.MINUTES);
+            }
+            return;
+        }
 
-        scheduler.scheduleAtFixedRate(new Runnable() {
+        Runnable cleanup = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -37,7 +61,10 @@ public class CleanupBackgroundJob implements ServletContextListener {
                     e.printStackTrace();
                 }
             }
-        }, 5, 5, TimeUnit.MINUTES);
+        };
+
+        logger.info("Setting up background cleanup task");
+        scheduler.scheduleAtFixedRate(cleanup, 5, 5, TimeUnit.MINUTES);
     }
 
     @Override
@@ -0,0 +1,48 @@
+package foundation.privacybydesign.sms;
+
+import foundation.privacybydesign.sms.smssender.SMSDispatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start the SMS dispatch workers, log their statistics once in a while and
+ * drain the queue on shutdown.
+ */
+@WebListener
+public class DispatchBackgroundJob implements ServletContextListener {
+    private static Logger logger = LoggerFactory.getLogger(DispatchBackgroundJob.class);
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        logger.info("Starting SMS dispatch workers");
+        SMSDispatcher.getInstance();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SMSDispatcher.getInstance().logStatistics();
+                } catch (Exception e) {
+                    logger.error("Failed to log SMS dispatch statistics:");
+                    e.printStackTrace();
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        scheduler.shutdownNow();
+        SMSDispatcher.getInstance().shutdown(10, TimeUnit.SECONDS);
+    }
+}
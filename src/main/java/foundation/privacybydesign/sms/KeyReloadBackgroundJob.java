@@ -0,0 +1,46 @@
+package foundation.privacybydesign.sms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check every few seconds whether the private key file has changed, and
+ * use the new key from then on. Requests keep using the key in memory, so
+ * they don't read the file themselves.
+ */
+@WebListener
+public class KeyReloadBackgroundJob implements ServletContextListener {
+    private static Logger logger = LoggerFactory.getLogger(KeyReloadBackgroundJob.class);
+    private static final int INTERVAL = 10; // seconds
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        logger.info("Setting up private key reload task");
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (SMSConfiguration.getInstance().reloadPrivateKey()) {
+                        logger.info("Loaded private key");
+                    }
+                } catch (Exception e) {
+                    logger.error("Failed to reload private key, keeping the current one: {}", e.getMessage());
+                }
+            }
+        }, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        scheduler.shutdownNow();
+    }
+}
@@ -2,11 +2,17 @@ package foundation.privacybydesign.sms;
 
 import foundation.privacybydesign.sms.common.BaseConfiguration;
 import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.smssender.SMSTemplate;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.irmacard.api.common.util.GsonUtil;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
@@ -17,7 +23,7 @@ import java.security.PrivateKey;
  * is probably located in build/resources/main.
  */
 public class SMSConfiguration extends BaseConfiguration<SMSConfiguration> {
-    static SMSConfiguration instance;
+    static volatile SMSConfiguration instance;
     static final String CONFIG_FILENAME = "config.json";
     static {
         BaseConfiguration.confDirName = "irma_sms_issuer";
@@ -33,8 +39,28 @@ public class SMSConfiguration extends BaseConfiguration<SMSConfiguration> {
     private String sms_sender_param_phone = "";
     private String sms_sender_param_message = "";
     private int sms_sender_timeout = 0;
+    private int sms_sender_connect_timeout = 0;
+    private int sms_sender_max_connections = 8;
+    private boolean sms_sender_http2 = true;
+    private int sms_sender_max_attempts = 1;
+    private int sms_sender_retry_backoff = 200;
+    private double sms_sender_retry_budget_ratio = 0.1;
+    private boolean sms_sender_hedging = false;
+    private int sms_dispatch_workers = 4;
+    private int sms_dispatch_queue_size = 1000;
+    private String sms_dispatch_overflow_policy = "reject";
+    private int admission_initial_limit = 20;
+    private int admission_min_limit = 4;
+    private int admission_max_limit = 200;
+    private int admission_latency_threshold = 1000;
+    private double admission_send_share = 0.8;
     private String sms_sender_number = "";
     private long token_validity = 0;
+    private int send_dedupe_window = 10;
+    private long memory_store_max_entries = 1000000;
+    private String snapshot_path = "";
+    private int snapshot_interval = 10;
+    private int warmup_iterations = 10000;
     private Map<String, String> sms_templates = null;
     private String private_key_path = "sk.der";
     private String server_name = "";
@@ -44,6 +70,8 @@ public class SMSConfiguration extends BaseConfiguration<SMSConfiguration> {
     private String sms_credential = "";
     private String sms_attribute = "";
     private CMGatewayConfiguration cm = null;
+    private SinkConfiguration sink = null;
+    private List<SenderRouteConfiguration> sms_sender_routes = null;
 
     // HMAC key with which phone numbers and IP addresses are HMACed when putting them into Redis.
     // Must be base64-encoded random data of 32 bytes.
@@ -51,24 +79,47 @@ public class SMSConfiguration extends BaseConfiguration<SMSConfiguration> {
     private String hmac_key_base64 = "";
 
     private Hmac hmac;
+    private transient Map<String, SMSTemplate> compiledTemplates;
+    // Read once and then only again when the file changes, see reloadPrivateKey().
+    private transient volatile PrivateKey privateKey;
+    private transient FileTime privateKeyModified;
 
     public static SMSConfiguration getInstance() {
+        // Double-checked, so that reading the instance doesn't take a lock.
         if (instance == null) {
-            load();
+            synchronized (SMSConfiguration.class) {
+                if (instance == null) {
+                    load();
+                }
+            }
         }
         return instance;
     }
 
     public static void load() {
+        SMSConfiguration conf;
         try {
             String json = new String(getResource(CONFIG_FILENAME));
-            instance = GsonUtil.getGson().fromJson(json, SMSConfiguration.class);
+            conf = GsonUtil.getGson().fromJson(json, SMSConfiguration.class);
         } catch (IOException e) {
-            instance = new SMSConfiguration();
+            conf = new SMSConfiguration();
         }
 
-        byte[] hmac_key = Base64.getDecoder().decode(instance.hmac_key_base64);
-        instance.hmac = new Hmac(hmac_key);
+        byte[] hmac_key = Base64.getDecoder().decode(conf.hmac_key_base64);
+        conf.hmac = new Hmac(hmac_key);
+        conf.compileTemplates();
+        // Only publish the configuration when it's complete.
+        instance = conf;
+    }
+
+    private void compileTemplates() {
+        Map<String, SMSTemplate> compiled = new HashMap<>();
+        if (sms_templates != null) {
+            for (Map.Entry<String, String> entry : sms_templates.entrySet()) {
+                compiled.put(entry.getKey(), SMSTemplate.compile(entry.getValue()));
+            }
+        }
+        compiledTemplates = compiled;
     }
 
     public String getSMSSenderBackend() {
@@ -115,14 +166,138 @@ public class SMSConfiguration extends BaseConfiguration<SMSConfiguration> {
         return sms_sender_timeout;
     }
 
+    /**
+     * Timeout for setting up a connection to the SMS gateway, in milliseconds.
+     * Falls back to sms_sender_timeout when not set.
+     */
+    public int getSMSSenderConnectTimeout() {
+        return sms_sender_connect_timeout > 0 ? sms_sender_connect_timeout : sms_sender_timeout;
+    }
+
+    public int getSMSSenderMaxConnections() {
+        return sms_sender_max_connections;
+    }
+
+    public boolean isSMSSenderHttp2Enabled() {
+        return sms_sender_http2;
+    }
+
+    /**
+     * Maximum number of attempts to send a message, including the first one.
+     */
+    public int getSMSSenderMaxAttempts() {
+        return sms_sender_max_attempts;
+    }
+
+    /**
+     * Base backoff between attempts to send a message, in milliseconds.
+     */
+    public int getSMSSenderRetryBackoff() {
+        return sms_sender_retry_backoff;
+    }
+
+    /**
+     * Maximum number of retries as a fraction of the number of messages.
+     */
+    public double getSMSSenderRetryBudgetRatio() {
+        return sms_sender_retry_budget_ratio;
+    }
+
+    public boolean isSMSSenderHedgingEnabled() {
+        return sms_sender_hedging;
+    }
+
+    public int getSMSDispatchWorkers() {
+        return sms_dispatch_workers;
+    }
+
+    public int getSMSDispatchQueueSize() {
+        return sms_dispatch_queue_size;
+    }
+
+    public String getSMSDispatchOverflowPolicy() {
+        return sms_dispatch_overflow_policy;
+    }
+
+    public int getAdmissionInitialLimit() {
+        return admission_initial_limit;
+    }
+
+    public int getAdmissionMinLimit() {
+        return admission_min_limit;
+    }
+
+    public int getAdmissionMaxLimit() {
+        return admission_max_limit;
+    }
+
+    /**
+     * Requests taking longer than this (in milliseconds) lower the
+     * concurrency limit.
+     */
+    public int getAdmissionLatencyThreshold() {
+        return admission_latency_threshold;
+    }
+
+    /**
+     * The fraction of the concurrency limit that /send requests may use. The
+     * rest is kept for /verify.
+     */
+    public double getAdmissionSendShare() {
+        return admission_send_share;
+    }
+
     public long getSMSTokenValidity() {
         return token_validity;
     }
 
+    /**
+     * Number of seconds after sending a token in which repeated /send
+     * requests for the same phone number don't send another one.
+     */
+    public int getSendDedupeWindow() {
+        return send_dedupe_window;
+    }
+
+    /**
+     * Maximum number of entries in each of the in-memory stores (tokens, IP
+     * limits and phone limits) when Redis is not used.
+     */
+    public long getMemoryStoreMaxEntries() {
+        return memory_store_max_entries;
+    }
+
+    /**
+     * File to save the in-memory stores to, so that they survive a restart.
+     * Empty to not save them.
+     */
+    public String getSnapshotPath() {
+        return snapshot_path;
+    }
+
+    /**
+     * Number of seconds between writing the changes to the snapshot file.
+     */
+    public int getSnapshotInterval() {
+        return snapshot_interval;
+    }
+
+    public int getWarmupIterations() {
+        return warmup_iterations;
+    }
+
     public String getSMSTemplate(String language) {
         return sms_templates.get(language);
     }
 
+    /**
+     * The SMS template for the given language, parsed when the configuration
+     * was loaded. Returns null if there is no template for the language.
+     */
+    public SMSTemplate getCompiledSMSTemplate(String language) {
+        return compiledTemplates.get(language);
+    }
+
     public String getServerName() {
         return server_name;
     }
@@ -155,8 +330,46 @@ public class SMSConfiguration extends BaseConfiguration<SMSConfiguration> {
         return cm;
     }
 
+    public SinkConfiguration getSinkConfiguration() {
+        return sink;
+    }
+
+    /**
+     * The backends used when sms_sender_backend is "routing", in order of
+     * preference.
+     */
+    public List<SenderRouteConfiguration> getSMSSenderRoutes() {
+        return sms_sender_routes;
+    }
+
     public PrivateKey getPrivateKey() throws KeyManagementException {
-        return BaseConfiguration.getPrivateKey(private_key_path);
+        PrivateKey key = privateKey;
+        if (key == null) {
+            reloadPrivateKey();
+            key = privateKey;
+        }
+        return key;
+    }
+
+    /**
+     * Read the private key again when its file was modified since it was
+     * last read, so that it can be replaced without a restart. Returns
+     * whether it was read. When the file can't be read or decoded, the
+     * key that was read before stays in use.
+     */
+    public synchronized boolean reloadPrivateKey() throws KeyManagementException {
+        final FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(Paths.get(getConfigurationDirectory().resolve(private_key_path)));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new KeyManagementException(e);
+        }
+        if (privateKey != null && modified.equals(privateKeyModified)) {
+            return false;
+        }
+        privateKey = BaseConfiguration.getPrivateKey(private_key_path);
+        privateKeyModified = modified;
+        return true;
     }
 
     public Hmac getHmac() {
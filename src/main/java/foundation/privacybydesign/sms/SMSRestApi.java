@@ -1,15 +1,16 @@
 package foundation.privacybydesign.sms;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.i18n.phonenumbers.NumberParseException;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber;
+import foundation.privacybydesign.sms.common.HmacDigest;
 import foundation.privacybydesign.sms.ratelimit.InvalidPhoneNumberException;
 import foundation.privacybydesign.sms.ratelimit.RateLimit;
 import foundation.privacybydesign.sms.ratelimit.RateLimitUtils;
-import foundation.privacybydesign.sms.smssender.CMGatewaySender;
-import foundation.privacybydesign.sms.smssender.SSHTunnelRESTSender;
-import foundation.privacybydesign.sms.smssender.Sender;
-import foundation.privacybydesign.sms.smssender.SimpleRESTSender;
+import foundation.privacybydesign.sms.smssender.DispatchRejectedException;
+import foundation.privacybydesign.sms.smssender.SMSDispatcher;
 import foundation.privacybydesign.sms.tokens.TokenManager;
 
 import org.irmacard.api.common.ApiClient;
@@ -22,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.ws.rs.FormParam;
+import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
@@ -29,12 +31,12 @@ import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import java.io.IOException;
-import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 
 /**
  * REST API for use by the web client.
@@ -46,6 +48,7 @@ public class SMSRestApi {
     private static final String ERR_RATE_LIMITED = "error:ratelimit";
     private static final String ERR_SENDING_SMS = "error:sending-sms";
     private static final String ERR_GENERATING_TOKEN = "error:generating-token";
+    private static final String ERR_NOT_READY = "error:not-ready";
     private static final String OK_RESPONSE = "OK:"; // prefix for number
 
     private static final String PROXY_IP_HEADER = "X-Real-IP";
@@ -57,11 +60,18 @@ public class SMSRestApi {
     static private final PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
     // Derived from acceptable EU countries in countries.txt
     // There is a corresponding list with matching entries in the webclient
-    static private final String[] countries = {
+    static private final Set<String> countries = Set.of(
             "AT", "BE", "BG", "CY", "DK", "DE", "EE", "FI", "FR", "GR", "HU", "IE",
-            "IS", "IT", "HR", "LV", "LT", "LI", "LU", "MT", "MC", "NL", "NO", "AT",
+            "IS", "IT", "HR", "LV", "LT", "LI", "LU", "MT", "MC", "NL", "NO",
             "PL", "PT", "RO", "SI", "SK", "ES", "CZ", "GB", "SE", "CH"
-    };
+    );
+
+    // Recently canonicalized phone numbers, so that /verify doesn't have to
+    // do the work of /send again. Invalid numbers are cached as "".
+    static private final int PHONE_CACHE_SIZE = 10000;
+    static private final Cache<String, String> phoneCache = Caffeine.newBuilder()
+            .maximumSize(PHONE_CACHE_SIZE)
+            .build();
 
     public SMSRestApi() {
         rateLimiter = RateLimitUtils.getRateLimiter();
@@ -71,6 +81,24 @@ public class SMSRestApi {
             throws InvalidPhoneNumberException {
         if (!phone.startsWith("+")) // The webclient only ever sends international numbers
             throw new InvalidPhoneNumberException();
+        String canonical = phoneCache.getIfPresent(phone);
+        if (canonical == null) {
+            try {
+                canonical = canonicalize(phone);
+            } catch (InvalidPhoneNumberException e) {
+                canonical = "";
+            }
+            phoneCache.put(phone, canonical);
+        }
+        if (canonical.isEmpty())
+            throw new InvalidPhoneNumberException();
+        return canonical;
+    }
+
+    /**
+     * canonicalPhoneNumber() without the cache.
+     */
+    static String canonicalize(String phone) throws InvalidPhoneNumberException {
         Phonenumber.PhoneNumber number;
         try {
             number = phoneUtil.parse(phone, null);
@@ -78,21 +106,58 @@ public class SMSRestApi {
             throw new InvalidPhoneNumberException();
         }
 
+        // This is the first region of the country code that the number fits,
+        // which is the main country when it fits that one, so checking only
+        // this region accepts the same numbers as checking all of them.
+        String region = phoneUtil.getRegionCodeForNumber(number);
+        if (region == null || !countries.contains(region)
+                || !phoneUtil.isValidNumberForRegion(number, region))
+            throw new InvalidPhoneNumberException();
+
+        // We should only go ahead if it is a mobile number, or if we can't tell wether
+        // it is a mobile number
+        PhoneNumberUtil.PhoneNumberType type = phoneUtil.getNumberType(number);
+        if (type == PhoneNumberUtil.PhoneNumberType.MOBILE ||
+                type == PhoneNumberUtil.PhoneNumberType.FIXED_LINE_OR_MOBILE ||
+                type == PhoneNumberUtil.PhoneNumberType.UNKNOWN)
+            return phoneUtil.format(number, PhoneNumberUtil.PhoneNumberFormat.E164);
+        else
+            throw new InvalidPhoneNumberException();
+    }
+
+    /**
+     * Canonicalize the example mobile numbers of the allowed countries, which
+     * loads their metadata, and sign issuing JWTs, so that the JIT has
+     * compiled this code before the first requests. The results aren't
+     * cached.
+     */
+    static void warmUp(int iterations) throws InvalidPhoneNumberException, KeyManagementException {
+        List<String> examples = new ArrayList<>(countries.size());
         for (String country : countries) {
-            if (phoneUtil.isValidNumberForRegion(number, country)) {
-                // We should only go ahead if it is a mobile number, or if we can't tell wether
-                // it is a mobile number
-                PhoneNumberUtil.PhoneNumberType type = phoneUtil.getNumberType(number);
-                if (type == PhoneNumberUtil.PhoneNumberType.MOBILE ||
-                        type == PhoneNumberUtil.PhoneNumberType.FIXED_LINE_OR_MOBILE ||
-                        type == PhoneNumberUtil.PhoneNumberType.UNKNOWN)
-                    return phoneUtil.format(number, PhoneNumberUtil.PhoneNumberFormat.E164);
-                else
-                    throw new InvalidPhoneNumberException();
+            Phonenumber.PhoneNumber number = phoneUtil.getExampleNumberForType(country,
+                    PhoneNumberUtil.PhoneNumberType.MOBILE);
+            if (number != null) {
+                examples.add(canonicalize(phoneUtil.format(number, PhoneNumberUtil.PhoneNumberFormat.E164)));
             }
         }
+        for (int i = 0; i < iterations; i++) {
+            canonicalize(examples.get(i % examples.size()));
+        }
+        // Signing takes much longer, so fewer of those.
+        for (int i = 0; i <= iterations / 100; i++) {
+            issuingJwt(examples.get(i % examples.size()));
+        }
+    }
 
-        throw new InvalidPhoneNumberException();
+    @GET
+    @Path("ready")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response ready() {
+        if (!WarmupBackgroundJob.isReady()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ERR_NOT_READY).build();
+        }
+        return Response.status(Response.Status.OK).entity("OK").build();
     }
 
     @POST
@@ -100,15 +165,29 @@ public class SMSRestApi {
     @Produces(MediaType.TEXT_PLAIN)
     public Response sendSmsCode(@Context HttpServletRequest req,
             @FormParam("phone") String phone,
-            @FormParam("language") String language) throws InvalidKeyException {
+            @FormParam("language") String language) {
+        SMSConfiguration conf = SMSConfiguration.getInstance();
+        HmacDigest phoneHash;
         try {
             phone = canonicalPhoneNumber(phone);
+            phoneHash = conf.getHmac().createHmac(phone);
+
+            // Double clicks and retries: the token sent a moment ago is
+            // still valid, so don't send another one (and don't count this
+            // request for rate limiting).
+            if (!TokenManager.getInstance().claimSend(phoneHash)) {
+                logger.info("Token was sent recently, not sending another one");
+                return Response.status(Response.Status.OK)
+                        .entity(OK_RESPONSE + conf.getSMSSenderNumber())
+                        .build();
+            }
 
             String ip = req.getHeader(PROXY_IP_HEADER);
             if (ip == null)
                 ip = req.getRemoteAddr();
-            long retryAfter = rateLimiter.rateLimited(ip, phone, SMSConfiguration.getInstance().getHmac());
+            long retryAfter = rateLimiter.rateLimited(ip, phoneHash, conf.getHmac());
             if (retryAfter > 0) {
+                releaseSend(phoneHash);
                 // 429 Too Many Requests
                 // https://tools.ietf.org/html/rfc6585#section-4
                 return Response.status(429)
@@ -119,38 +198,32 @@ public class SMSRestApi {
         } catch (InvalidPhoneNumberException e) {
             return Response.status(Response.Status.BAD_REQUEST)
                     .entity(ERR_ADDRESS_MALFORMED).build();
-        } catch (NoSuchAlgorithmException e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(ERR_GENERATING_TOKEN).build();
         }
 
         String token;
         try {
-            token = TokenManager.getInstance().generate(phone, SMSConfiguration.getInstance().getHmac());
+            token = TokenManager.getInstance().generate(phoneHash);
         } catch (Exception e) {
             logger.error("Failed to send SMS: " + e.getMessage(), e);
+            releaseSend(phoneHash);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                     .entity(ERR_GENERATING_TOKEN).build();
         }
 
-        Sender sender;
-        switch (SMSConfiguration.getInstance().getSMSSenderBackend()) {
-            case "rest":
-                sender = new SimpleRESTSender();
-                break;
-            case "ssh-rest":
-                sender = new SSHTunnelRESTSender();
-                break;
-            case "cm":
-                sender = new CMGatewaySender();
-                break;
-            default:
-                throw new RuntimeException("Unknown SMS sender backend");
-        }
         try {
-            sender.send(language, phone, token);
+            // When the SMS can't be sent after all, the user may ask for a
+            // new one right away.
+            SMSDispatcher.getInstance().dispatch(language, phone, token, () -> releaseSend(phoneHash));
+        } catch (DispatchRejectedException e) {
+            logger.warn("SMS dispatch queue is full, rejecting request");
+            releaseSend(phoneHash);
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ERR_SENDING_SMS)
+                    .header("Retry-After", 1)
+                    .build();
         } catch (IOException e) {
             logger.error("Failed to send SMS: " + e.getMessage());
+            releaseSend(phoneHash);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                     .entity(ERR_SENDING_SMS).build();
         }
@@ -158,10 +231,18 @@ public class SMSRestApi {
         // It would be a bit nicer to switch to JSON responses, but this also
         // works.
         return Response.status(Response.Status.OK)
-                .entity(OK_RESPONSE + SMSConfiguration.getInstance().getSMSSenderNumber())
+                .entity(OK_RESPONSE + conf.getSMSSenderNumber())
                 .build();
     }
 
+    private static void releaseSend(HmacDigest phoneHash) {
+        try {
+            TokenManager.getInstance().releaseSend(phoneHash);
+        } catch (Exception e) {
+            logger.error("Failed to release send claim: " + e.getMessage());
+        }
+    }
+
     @POST
     @Path("verify")
     @Produces(MediaType.TEXT_PLAIN)
@@ -178,7 +259,8 @@ public class SMSRestApi {
         }
 
         try {
-            final boolean isValidToken = TokenManager.getInstance().verify(phone, token, SMSConfiguration.getInstance().getHmac());
+            final HmacDigest phoneHash = conf.getHmac().createHmac(phone);
+            final boolean isValidToken = TokenManager.getInstance().verify(phoneHash, token);
             if (!isValidToken) {
                 return Response.status(Response.Status.UNAUTHORIZED)
                         .entity(ERR_CANNOT_VALIDATE).build();
@@ -188,7 +270,11 @@ public class SMSRestApi {
                         .entity(ERR_CANNOT_VALIDATE).build();
         }
         // The phone number is validated. Now build the issuing JWT.
+        return Response.status(Response.Status.OK).entity(issuingJwt(phone)).build();
+    }
 
+    private static String issuingJwt(String phone) throws KeyManagementException {
+        SMSConfiguration conf = SMSConfiguration.getInstance();
         ArrayList<CredentialRequest> credentials = new ArrayList<>(1);
         HashMap<String, String> attrs = new HashMap<>(1);
         attrs.put(conf.getSMSAttribute(), phone);
@@ -204,11 +290,10 @@ public class SMSRestApi {
 
         IdentityProviderRequest ipRequest = new IdentityProviderRequest("",
                 new IssuingRequest(null, null, credentials), 120);
-        String jwt = ApiClient.getSignedIssuingJWT(ipRequest,
+        return ApiClient.getSignedIssuingJWT(ipRequest,
                 conf.getServerName(),
                 conf.getHumanReadableName(),
                 conf.getJwtAlgorithm(),
                 conf.getPrivateKey());
-        return Response.status(Response.Status.OK).entity(jwt).build();
     }
 }
@@ -0,0 +1,36 @@
+package foundation.privacybydesign.sms;
+
+/**
+ * One of the SMS backends used by the "routing" sender.
+ */
+public class SenderRouteConfiguration {
+    private String name = "";
+    private String backend = "";
+    private CMGatewayConfiguration cm = null;
+    private String dedupe_group = "";
+
+    public String getName() {
+        return name.isEmpty() ? backend : name;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * CM gateway settings for this route. When not set, the top-level cm
+     * settings are used.
+     */
+    public CMGatewayConfiguration getCMGatewayConfiguration() {
+        return cm;
+    }
+
+    /**
+     * Routes with the same dedupe group deliver to the same gateway, which
+     * drops a message with a reference it has already seen. Hedged attempts
+     * only go to a route in the same group. Null when not set.
+     */
+    public String getDedupeGroup() {
+        return dedupe_group == null || dedupe_group.isEmpty() ? null : dedupe_group;
+    }
+}
@@ -0,0 +1,54 @@
+package foundation.privacybydesign.sms;
+
+public class SinkConfiguration {
+    private int latency_ms = 0;
+    private double error_rate = 0;
+    private boolean error_not_sent = true;
+    private String path = "";
+    private int file_size = 16 * 1024 * 1024;
+    private int files = 4;
+
+    /**
+     * Artificial latency of every message in milliseconds.
+     */
+    public int getLatencyMillis() {
+        return latency_ms;
+    }
+
+    /**
+     * Fraction of the messages that fail.
+     */
+    public double getErrorRate() {
+        return error_rate;
+    }
+
+    /**
+     * Whether failed messages are known not to be sent (like a refused
+     * connection), so they may be retried or failed over. Otherwise the
+     * outcome is unknown, like after a timeout.
+     */
+    public boolean isErrorNotSent() {
+        return error_not_sent;
+    }
+
+    /**
+     * File to write the messages to, or empty to only count them.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Size of a log file in bytes, after which it is rotated.
+     */
+    public int getFileSize() {
+        return file_size;
+    }
+
+    /**
+     * Number of rotated log files that are kept.
+     */
+    public int getFiles() {
+        return files;
+    }
+}
@@ -0,0 +1,150 @@
+package foundation.privacybydesign.sms;
+
+import foundation.privacybydesign.sms.ratelimit.RateLimit;
+import foundation.privacybydesign.sms.ratelimit.RateLimitUtils;
+import foundation.privacybydesign.sms.snapshot.SnapshotJournal;
+import foundation.privacybydesign.sms.snapshot.Snapshottable;
+import foundation.privacybydesign.sms.tokens.TokenManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Save the in-memory stores to snapshot_path, and restore them from it at
+ * startup.
+ *
+ * At startup the file is replayed and then replaced by a full snapshot.
+ * After that only the changes are appended, every snapshot_interval
+ * seconds, until the file has grown to twice the size of the full snapshot
+ * and is replaced by a new one. Snapshots are written on a background
+ * thread, reading the stores like any other request would.
+ */
+@WebListener
+public class SnapshotBackgroundJob implements ServletContextListener {
+    private static Logger logger = LoggerFactory.getLogger(SnapshotBackgroundJob.class);
+    private static final int MIN_COMPACT_SIZE = 1 << 20;
+
+    private ScheduledExecutorService scheduler;
+    private final List<Snapshottable> stores = new ArrayList<>();
+    private Path path;
+    private SnapshotJournal journal;
+    private int compactedSize;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        SMSConfiguration conf = SMSConfiguration.getInstance();
+        if ("redis".equals(System.getenv("STORAGE_TYPE"))
+                || conf.getSnapshotPath() == null || conf.getSnapshotPath().isEmpty()) {
+            return;
+        }
+        path = Paths.get(conf.getSnapshotPath());
+
+        Snapshottable tokens = TokenManager.getInstance().getSnapshottable();
+        if (tokens != null) {
+            stores.add(tokens);
+        }
+        RateLimit rateLimit = RateLimitUtils.getRateLimiter();
+        if (rateLimit instanceof Snapshottable) {
+            stores.add((Snapshottable) rateLimit);
+        }
+
+        try {
+            long start = System.nanoTime();
+            int records = SnapshotJournal.replay(path, (type, key, text, a, b) -> {
+                for (Snapshottable store : stores) {
+                    store.restore(type, key, text, a, b);
+                }
+            });
+            logger.info("Restored {} records from snapshot {} in {} ms", records, path,
+                    (System.nanoTime() - start) / 1000000);
+        } catch (IOException e) {
+            logger.error("Failed to restore snapshot {}: {}", path, e.getMessage());
+        }
+
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.error("Failed to write snapshot {}, not saving the in-memory stores: {}", path, e.getMessage());
+            return;
+        }
+
+        logger.info("Setting up background snapshot task");
+        int interval = Math.max(1, conf.getSnapshotInterval());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private synchronized void snapshot() {
+        try {
+            for (Snapshottable store : stores) {
+                store.snapshot(journal, false);
+            }
+            journal.force();
+            if (journal.size() > Math.max(2 * compactedSize, MIN_COMPACT_SIZE)) {
+                compact();
+            }
+        } catch (Exception e) {
+            logger.error("Failed to write snapshot:");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write a full snapshot to a new file and put it in place of the old
+     * one.
+     */
+    private void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        SnapshotJournal next = SnapshotJournal.create(tmp);
+        try {
+            for (Snapshottable store : stores) {
+                store.snapshot(next, true);
+            }
+            next.force();
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        journal = next;
+        compactedSize = next.size();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        synchronized (this) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error("Failed to close snapshot {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package foundation.privacybydesign.sms;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.ratelimit.RateLimitUtils;
+import foundation.privacybydesign.sms.tokens.TokenManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Initialize and check everything that /send and /verify need, and run
+ * their code on made-up input until the JIT has compiled it. Until this is
+ * done, /ready reports that the server isn't ready.
+ *
+ * Nothing is stored: tokens and rate limits are kept in private stores, and
+ * Redis is only pinged.
+ */
+@WebListener
+public class WarmupBackgroundJob implements ServletContextListener {
+    private static Logger logger = LoggerFactory.getLogger(WarmupBackgroundJob.class);
+    private static volatile boolean ready = false;
+
+    private ExecutorService executor;
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(this::warmUp);
+    }
+
+    private void warmUp() {
+        long start = System.nanoTime();
+        try {
+            SMSConfiguration conf = SMSConfiguration.getInstance();
+            conf.getPrivateKey();
+            Hmac hmac = conf.getHmac();
+            int iterations = Math.max(0, conf.getWarmupIterations());
+
+            logger.info("Warming up with {} iterations", iterations);
+            SMSRestApi.warmUp(iterations);
+            TokenManager.getInstance().warmUp(iterations, hmac);
+            RateLimitUtils.warmUp(iterations, hmac);
+
+            ready = true;
+            logger.info("Warm-up done in {} ms, ready", (System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            logger.error("Warm-up failed, not reporting ready:");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ready = false;
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,95 @@
+package foundation.privacybydesign.sms.admission;
+
+import foundation.privacybydesign.sms.SMSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reject API requests with 503 Service Unavailable when the server is
+ * handling too many requests at the same time, before they reach Jersey.
+ *
+ * A /verify request completes a user's flow, while /send only starts one, so
+ * /send may only use part of the concurrency limit (admission_send_share).
+ * During a flood of /send requests there is then still room for /verify.
+ *
+ * The /ready probe is not limited, so the load balancer can always reach it.
+ */
+@WebFilter("/api/*")
+public class AdmissionControlFilter implements Filter {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControlFilter.class);
+    private static final String ERR_OVERLOADED = "error:internal";
+
+    private ConcurrencyLimiter limiter;
+    private double sendShare;
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        limiter = ConcurrencyLimiter.getInstance();
+        sendShare = SMSConfiguration.getInstance().getAdmissionSendShare();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.logStatistics();
+                } catch (Exception e) {
+                    logger.error("Failed to log admission control statistics:");
+                    e.printStackTrace();
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+
+        if ("/ready".equals(req.getPathInfo())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        double share = "/send".equals(req.getPathInfo()) ? sendShare : 1.0;
+        if (!limiter.tryAcquire(share)) {
+            res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            res.setHeader("Retry-After", "1");
+            res.setContentType("text/plain");
+            res.getWriter().write(ERR_OVERLOADED);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            // A 503 is returned on purpose (e.g. a full dispatch queue), it
+            // doesn't mean the request itself failed.
+            failed = res.getStatus() >= 500 && res.getStatus() != HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } finally {
+            limiter.release(System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+}
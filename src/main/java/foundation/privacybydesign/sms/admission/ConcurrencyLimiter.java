@@ -0,0 +1,128 @@
+package foundation.privacybydesign.sms.admission;
+
+import foundation.privacybydesign.sms.SMSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on the number of requests that are handled at the same time
+ * (AIMD: additive increase, multiplicative decrease).
+ *
+ * Every request that completes quickly and successfully while the limit is
+ * being used raises the limit by 1/limit, so about one per limit requests.
+ * A request that is slow or fails with a server error lowers the limit by
+ * BACKOFF_RATIO, at most once per window: the requests that were in flight at
+ * that moment were probably slowed down by the same overload, so they don't
+ * lower it again when they complete. The limit stays between the configured
+ * minimum and maximum.
+ *
+ * Requests have a share of the limit they may use: low priority requests
+ * are rejected while there is still room for high priority requests.
+ */
+public class ConcurrencyLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    private static volatile ConcurrencyLimiter instance;
+
+    static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+
+    private double limit;
+    private int inFlight = 0;
+    // Number of completions until the limit may be lowered again.
+    private int backoffPending = 0;
+    private int maxInFlight = 0;
+    private long accepted = 0;
+    private long rejected = 0;
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMillis) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdMillis * 1000000;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    public static ConcurrencyLimiter getInstance() {
+        if (instance == null) {
+            synchronized (ConcurrencyLimiter.class) {
+                if (instance == null) {
+                    SMSConfiguration conf = SMSConfiguration.getInstance();
+                    instance = new ConcurrencyLimiter(conf.getAdmissionInitialLimit(),
+                            conf.getAdmissionMinLimit(),
+                            conf.getAdmissionMaxLimit(),
+                            conf.getAdmissionLatencyThreshold());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Try to start a request that may use the given share (between 0 and 1)
+     * of the limit. When this returns true, release() must be called when
+     * the request is done.
+     */
+    public synchronized boolean tryAcquire(double share) {
+        int allowed = Math.max(1, (int) (limit * share));
+        if (inFlight >= allowed) {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        accepted++;
+        maxInFlight = Math.max(maxInFlight, inFlight);
+        return true;
+    }
+
+    /**
+     * Finish a request and adjust the limit based on how it went.
+     */
+    public synchronized void release(long nanos, boolean failed) {
+        boolean backingOff = backoffPending > 0;
+        if (backingOff) {
+            backoffPending--;
+        }
+        if (failed || nanos > latencyThresholdNanos) {
+            if (!backingOff) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                backoffPending = inFlight - 1;
+            }
+        } else if (inFlight * 2 >= limit) {
+            // Only grow when the limit is actually being used, otherwise it
+            // would creep up to the maximum while the server is idle.
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        inFlight--;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getAcceptedCount() {
+        return accepted;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    public void logStatistics() {
+        int peak;
+        synchronized (this) {
+            peak = maxInFlight;
+            maxInFlight = inFlight;
+        }
+        logger.info(String.format("Admission control: limit %d, in flight %d (peak %d), accepted %d, rejected %d",
+                getLimit(), getInFlight(), peak, getAcceptedCount(), getRejectedCount()));
+    }
+}
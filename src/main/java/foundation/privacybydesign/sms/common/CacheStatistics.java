@@ -0,0 +1,24 @@
+package foundation.privacybydesign.sms.common;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+
+/**
+ * Log the size and evictions of the in-memory stores.
+ */
+public class CacheStatistics {
+    private CacheStatistics() {
+    }
+
+    /**
+     * @param bytesPerEntry rough size of one entry including the key and the
+     *                      cache's own bookkeeping, for the memory estimate
+     */
+    public static void log(Logger logger, String name, Cache<?, ?> cache, int bytesPerEntry) {
+        long size = cache.estimatedSize();
+        CacheStats stats = cache.stats();
+        logger.info(String.format("%s: %d entries (about %d kB), %d evicted",
+                name, size, size * bytesPerEntry / 1024, stats.evictionCount()));
+    }
+}
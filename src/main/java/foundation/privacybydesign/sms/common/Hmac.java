@@ -1,26 +1,91 @@
 package foundation.privacybydesign.sms.common;
 
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.security.GeneralSecurityException;
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * HMAC-SHA256 of phone numbers and IP addresses, used to identify them in
+ * the token and rate limit stores without storing them.
+ *
+ * Every thread keeps its own initialized Mac, so a HMAC doesn't need a
+ * provider lookup or key setup, and digest() writes into the caller's buffer
+ * without allocating. createHmac() returns the raw digest, which the compact
+ * stores use as is; it is only Base64 encoded for the stores that need that.
+ */
 public class Hmac {
+  public static final int LENGTH = 32;
+
   private final SecretKeySpec secretKey;
+  private final ThreadLocal<Engine> engines = ThreadLocal.withInitial(this::newEngine);
+
+  private static class Engine {
+      final Mac mac;
+      byte[] input = new byte[32];
+
+      Engine(Mac mac) {
+          this.mac = mac;
+      }
+  }
 
   public Hmac(byte[] key)  {
       if (key.length < 32) {
           throw new RuntimeException("key too short: must be at least 32 bytes");
       }
       this.secretKey = new SecretKeySpec(key, "HmacSHA256");
+      // Fail now instead of on the first request.
+      engines.get();
+  }
+
+  private Engine newEngine() {
+      try {
+          final Mac mac = Mac.getInstance("HmacSHA256");
+          mac.init(secretKey);
+          return new Engine(mac);
+      } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("HmacSHA256 not available", e);
+      }
+  }
+
+  /**
+   * Write the HMAC of the UTF-8 encoded input into out, which must have
+   * room for LENGTH bytes from offset.
+   */
+  public void digest(String input, byte[] out, int offset) {
+      final Engine engine = engines.get();
+      final int length = input.length();
+      if (engine.input.length < length) {
+          engine.input = new byte[Math.max(length, 2 * engine.input.length)];
+      }
+      // Phone numbers and IP addresses are ASCII, which is the same in UTF-8.
+      byte[] bytes = engine.input;
+      int count = length;
+      for (int i = 0; i < length; i++) {
+          final char c = input.charAt(i);
+          if (c >= 0x80) {
+              bytes = input.getBytes(StandardCharsets.UTF_8);
+              count = bytes.length;
+              break;
+          }
+          bytes[i] = (byte) c;
+      }
+      engine.mac.update(bytes, 0, count);
+      try {
+          engine.mac.doFinal(out, offset);
+      } catch (ShortBufferException e) {
+          throw new IllegalArgumentException("no room for HMAC in output buffer", e);
+      }
   }
 
-  public String createHmac(String input) throws NoSuchAlgorithmException, InvalidKeyException {
-      final Mac hmac = Mac.getInstance("HmacSHA256");
-      hmac.init(secretKey); // Initialize with the secret key
-      final byte[] encodedHmac = hmac.doFinal(input.getBytes(StandardCharsets.UTF_8));
-      return Base64.getEncoder().encodeToString(encodedHmac);
+  /**
+   * The HMAC of a phone number or IP address, which is how the stores
+   * identify it. Computed once per request and passed on.
+   */
+  public HmacDigest createHmac(String input) {
+      final byte[] out = new byte[LENGTH];
+      digest(input, out, 0);
+      return new HmacDigest(out);
   }
 }
@@ -0,0 +1,63 @@
+package foundation.privacybydesign.sms.common;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The HMAC of a phone number or IP address, which identifies it in the token
+ * and rate limit stores. The compact stores and the in-memory maps use the
+ * 32 raw bytes; the Base64 form is only encoded for the original Redis key
+ * format and for snapshots.
+ */
+public final class HmacDigest {
+    private final byte[] bytes;
+
+    HmacDigest(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static HmacDigest fromBase64(String base64) {
+        final byte[] bytes = Base64.getDecoder().decode(base64);
+        if (bytes.length != Hmac.LENGTH) {
+            throw new IllegalArgumentException("Not a HMAC: " + base64);
+        }
+        return new HmacDigest(bytes);
+    }
+
+    /**
+     * Copy the raw digest into out, which must have room for Hmac.LENGTH bytes
+     * from offset.
+     */
+    public void copyTo(byte[] out, int offset) {
+        System.arraycopy(bytes, 0, out, offset, Hmac.LENGTH);
+    }
+
+    /**
+     * Bytes 8 * word to 8 * word + 7 of the digest, big endian.
+     */
+    public long word(int word) {
+        long result = 0;
+        for (int i = 8 * word; i < 8 * word + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * The Base64 encoded digest.
+     */
+    @Override
+    public String toString() {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HmacDigest && Arrays.equals(bytes, ((HmacDigest) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+}
@@ -1,7 +1,21 @@
 package foundation.privacybydesign.sms.ratelimit;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import foundation.privacybydesign.sms.SMSConfiguration;
+import foundation.privacybydesign.sms.common.CacheStatistics;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import foundation.privacybydesign.sms.snapshot.SnapshotJournal;
+import foundation.privacybydesign.sms.snapshot.Snapshottable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Store rate limits in memory. Useful for debugging and rate limits that
@@ -17,46 +31,136 @@ import java.util.concurrent.ConcurrentHashMap;
  * An algorithm with a similar goal is the Token Bucket algorithm. This
  * algorithm probably works well, but seemed harder to implement.
  * https://en.wikipedia.org/wiki/Token_bucket
+ *
+ * Checking and counting a request must be atomic for its IP address and
+ * phone number together, but requests for other addresses and numbers don't
+ * need to wait. Keys are therefore spread over LOCK_STRIPES locks, and a
+ * request only takes the (at most two) locks of its own keys.
+ *
+ * The number of IP addresses and phone numbers that is kept is bounded, so
+ * a flood from many addresses can't exhaust the heap. Limits are dropped
+ * when they no longer have an effect, and beyond that Caffeine's W-TinyLFU
+ * policy decides what to evict. Evicting a limit resets it, so the bound
+ * should be well above the number of addresses seen in 5 days. Expired limits
+ * are removed by the scheduler as soon as they expire, without scanning the
+ * others.
+ *
+ * The limits can be saved to a SnapshotJournal, so that a restart doesn't
+ * reset them. After the first full snapshot the keys with changes are kept
+ * in a set, so that the next snapshots only write those.
  */
-public class MemoryRateLimit extends RateLimit {
+public class MemoryRateLimit extends RateLimit implements Snapshottable {
     private static final long SECOND = 1000; // 1000ms = 1s
     private static final long MINUTE = SECOND * 60;
     private static final long HOUR = MINUTE * 60;
     private static final long DAY = HOUR * 24;
     private static final int IP_TIMEOUT = 10 * 1000; // timeout in seconds
     private static final int IP_TRIES = 3; // number of tries on first visit
+    private static final int LOCK_STRIPES = 64;
+    private static final long DEFAULT_MAX_ENTRIES = 1000000;
+    // Key (32 byte digest), value and cache node.
+    private static final int IP_ENTRY_BYTES = 200;
+    private static final int PHONE_ENTRY_BYTES = 220;
 
-    private static MemoryRateLimit instance;
+    private static Logger LOG = LoggerFactory.getLogger(MemoryRateLimit.class);
+    private static volatile MemoryRateLimit instance;
 
-    private final Map<String, Long> ipLimits;
-    private final Map<String, Limit> phoneLimits;
+    private final Cache<HmacDigest, Long> ipCache;
+    private final Cache<HmacDigest, Limit> phoneCache;
+    private final Map<HmacDigest, Long> ipLimits;
+    private final Map<HmacDigest, Limit> phoneLimits;
+    private final Object[] locks;
+    // Keys changed since the last snapshot, null until the first one.
+    private volatile Set<HmacDigest> changedIPs;
+    private volatile Set<HmacDigest> changedPhones;
 
     public MemoryRateLimit() {
-        ipLimits = new ConcurrentHashMap<>();
-        phoneLimits = new ConcurrentHashMap<>();
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public MemoryRateLimit(long maxEntries) {
+        // An IP limit is at most the current time when it's written, and
+        // has no effect anymore IP_TRIES periods later.
+        ipCache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(IP_TIMEOUT * IP_TRIES, TimeUnit.MILLISECONDS)
+                .scheduler(Scheduler.systemScheduler())
+                .recordStats()
+                .build();
+        // A phone limit is written with the current time, and kept 5 days.
+        phoneCache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(5 * DAY, TimeUnit.MILLISECONDS)
+                .scheduler(Scheduler.systemScheduler())
+                .recordStats()
+                .build();
+        ipLimits = ipCache.asMap();
+        phoneLimits = phoneCache.asMap();
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
     }
 
     public static MemoryRateLimit getInstance() {
         if (instance == null) {
-            instance = new MemoryRateLimit();
+            synchronized (MemoryRateLimit.class) {
+                if (instance == null) {
+                    instance = new MemoryRateLimit(SMSConfiguration.getInstance().getMemoryStoreMaxEntries());
+                }
+            }
         }
         return instance;
     }
 
+    private static int stripe(HmacDigest key) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % LOCK_STRIPES;
+    }
+
     private long startLimitIP(long now) {
         return now - IP_TIMEOUT * IP_TRIES;
     }
 
     @Override
-    protected synchronized long nextTryIP(String ip, long now) {
+    protected long checkAndCount(HmacDigest ipHash, HmacDigest phoneHash, long now) {
+        // Always lock in the same order, so two requests can't deadlock.
+        int ipStripe = stripe(ipHash);
+        int phoneStripe = stripe(phoneHash);
+        Object first = locks[Math.min(ipStripe, phoneStripe)];
+        Object second = locks[Math.max(ipStripe, phoneStripe)];
+        synchronized (first) {
+            synchronized (second) {
+                long ipRetryAfter = nextTryIP(ipHash, now);
+                Limit phoneLimit = phoneLimits.get(phoneHash);
+                long phoneRetryAfter = nextTryPhone(phoneLimit, now);
+                long retryAfter = Math.max(ipRetryAfter, phoneRetryAfter);
+                if (retryAfter > now) {
+                    // Don't count this request if it has been denied.
+                    return retryAfter;
+                }
+                ipLimits.put(ipHash, ipRetryAfter);
+                phoneLimits.put(phoneHash, countPhone(phoneLimit, now));
+                changed(changedIPs, ipHash);
+                changed(changedPhones, phoneHash);
+                return 0;
+            }
+        }
+    }
+
+    private static void changed(Set<HmacDigest> set, HmacDigest key) {
+        if (set != null) {
+            set.add(key);
+        }
+    }
+
+    private long nextTryIP(HmacDigest ip, long now) {
         // Allow at most 1 try in each period (TIMEOUT), but kick in only
         // after 3 tries. Thus while the user can do only 1 try per period
         // over longer periods, the initial budget is 3 periods.
-        long limit = 0; // First try - last try was "long in the past".
-        if (ipLimits.containsKey(ip)) {
-            // Ah, there was a request before.
-            limit = ipLimits.get(ip);
-        }
+        Long previous = ipLimits.get(ip);
+        // First try - last try was "long in the past".
+        long limit = previous == null ? 0 : previous;
 
         long startLimit = startLimitIP(now);
         if (limit < startLimit) {
@@ -70,18 +174,8 @@ public class MemoryRateLimit extends RateLimit {
         return limit;
     }
 
-    @Override
-    protected synchronized void countIP(String ipHash, long now) {
-        long nextTry = nextTryIP(ipHash, now);
-        if (nextTry > now) {
-            throw new IllegalStateException("counting rate limit while over the limit");
-        }
-        ipLimits.put(ipHash, nextTry);
-    }
-
     // Is the user over the rate limit per phone number?
-    @Override
-    protected synchronized long nextTryPhone(String phoneHash, long now) {
+    private static long nextTryPhone(Limit limit, long now) {
         // Rate limiter durations (sort-of logarithmic):
         // 1 10 second
         // 2 5 minute
@@ -90,10 +184,8 @@ public class MemoryRateLimit extends RateLimit {
         // 5+ 1 per day
         // Keep log 5 days for proper limiting.
 
-        Limit limit = phoneLimits.get(phoneHash);
         if (limit == null) {
             limit = new Limit(now);
-            phoneLimits.put(phoneHash, limit);
         }
         long nextTry; // timestamp when the next request is allowed
         switch (limit.tries) {
@@ -109,56 +201,113 @@ public class MemoryRateLimit extends RateLimit {
             case 3: // try 4: allowed after 3 hours
                 nextTry = limit.timestamp + 3 * HOUR;
                 break;
-            case 4: // try 5: allowed after 24 hours
+            default: // try 5 and later: allowed after 24 hours
                 nextTry = limit.timestamp + 24 * HOUR;
                 break;
-            default:
-                throw new IllegalStateException("invalid tries count");
         }
         return nextTry;
     }
 
     // Count the usage of this rate limit - adding to the budget for this
     // phone number.
-    @Override
-    protected synchronized void countPhone(String phoneHash, long now) {
-        long nextTry = nextTryPhone(phoneHash, now);
-        Limit limit = phoneLimits.get(phoneHash);
-        if (nextTry > now) {
-            throw new IllegalStateException("counting rate limit while over the limit");
+    private static Limit countPhone(Limit limit, long now) {
+        if (limit == null) {
+            limit = new Limit(now);
         }
-        limit.tries = Math.min(limit.tries + 1, 5); // add 1, max at 5
+        int tries = Math.min(limit.tries + 1, 5); // add 1, max at 5
         // If the last usage was e.g. ≥2 days ago, we should allow them 2 tries
         // extra tries this day.
         long lastTryDaysAgo = (now - limit.timestamp) / DAY;
-        long bonusTries = limit.tries - lastTryDaysAgo;
+        long bonusTries = tries - lastTryDaysAgo;
         if (bonusTries >= 1) {
-            limit.tries = (int) bonusTries;
+            tries = (int) bonusTries;
         }
-        limit.timestamp = now;
+        return new Limit(now, tries);
     }
 
     @Override
-    public void periodicCleanup() {
-        long now = System.currentTimeMillis();
-        // Use enhanced for loop, because an iterator makes sure concurrency issues
-        // cannot occur.
-        for (Map.Entry<String, Long> entry : ipLimits.entrySet()) {
-            if (entry.getValue() < startLimitIP(now)) {
-                ipLimits.remove(entry.getKey());
+    public void snapshot(SnapshotJournal journal, boolean full) throws IOException {
+        if (full) {
+            // Changes from now on are either seen below or in the sets.
+            changedIPs = ConcurrentHashMap.newKeySet();
+            changedPhones = ConcurrentHashMap.newKeySet();
+            for (Map.Entry<HmacDigest, Long> entry : ipLimits.entrySet()) {
+                journal.append(SnapshotJournal.IP_LIMIT, entry.getKey().toString(), null, entry.getValue(), 0);
+            }
+            for (Map.Entry<HmacDigest, Limit> entry : phoneLimits.entrySet()) {
+                Limit limit = entry.getValue();
+                journal.append(SnapshotJournal.PHONE_LIMIT, entry.getKey().toString(), null, limit.timestamp,
+                        limit.tries);
+            }
+            return;
+        }
+        Set<HmacDigest> ips = changedIPs;
+        Set<HmacDigest> phones = changedPhones;
+        if (ips == null || phones == null) {
+            throw new IllegalStateException("Incremental snapshot before the first full snapshot");
+        }
+        // Limits are never removed other than by expiry, so only the
+        // current values need to be written.
+        for (HmacDigest ipHash : ips) {
+            ips.remove(ipHash);
+            Long limit = ipLimits.get(ipHash);
+            if (limit != null) {
+                journal.append(SnapshotJournal.IP_LIMIT, ipHash.toString(), null, limit, 0);
             }
         }
-        for (Map.Entry<String, Limit> entry : phoneLimits.entrySet()) {
-            if (entry.getValue().timestamp < now - 5 * DAY) {
-                phoneLimits.remove(entry.getKey());
+        for (HmacDigest phoneHash : phones) {
+            phones.remove(phoneHash);
+            Limit limit = phoneLimits.get(phoneHash);
+            if (limit != null) {
+                journal.append(SnapshotJournal.PHONE_LIMIT, phoneHash.toString(), null, limit.timestamp, limit.tries);
             }
         }
     }
+
+    @Override
+    public void restore(byte type, String hash, String text, long a, long b) {
+        final HmacDigest key;
+        try {
+            key = HmacDigest.fromBase64(hash);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring snapshot record with invalid key");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        switch (type) {
+            case SnapshotJournal.IP_LIMIT:
+                if (a >= startLimitIP(now)) {
+                    ipLimits.put(key, a);
+                }
+                break;
+            case SnapshotJournal.PHONE_LIMIT:
+                if (now - a < 5 * DAY) {
+                    phoneLimits.put(key, new Limit(a, (int) b));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Expired limits are evicted by the caches themselves; this only logs
+     * the statistics.
+     */
+    @Override
+    public void periodicCleanup() {
+        CacheStatistics.log(LOG, "In-memory IP limits", ipCache, IP_ENTRY_BYTES);
+        CacheStatistics.log(LOG, "In-memory phone limits", phoneCache, PHONE_ENTRY_BYTES);
+    }
 }
 
+/**
+ * Rate limit state of a phone number. Immutable, so it can be read without
+ * holding a lock.
+ */
 class Limit {
-    long timestamp;
-    int tries;
+    final long timestamp;
+    final int tries;
 
     Limit(long now) {
         tries = 0;
@@ -4,11 +4,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Base class for rate limiting. Subclasses provide storage methods (memory
@@ -21,31 +20,24 @@ public abstract class RateLimit {
      * Take an IP address and a phone number and rate limit them.
      * 
      * @param remoteAddr IP address (IPv4 or IPv6 in any format)
-     * @param phone      phone number
+     * @param phoneHash  HMAC of the phone number, as used by the TokenManager
      * @return the number of milliseconds that the client should wait - 0 if
      *         it shouldn't wait.
-     * @throws NoSuchAlgorithmException If the hashing algorithm in use isn't available on the system, this exception is thrown.
      */
-    public long rateLimited(String remoteAddr, String phone, Hmac hmac)
-            throws InvalidPhoneNumberException, NoSuchAlgorithmException, InvalidKeyException {
+    public long rateLimited(String remoteAddr, HmacDigest phoneHash, Hmac hmac)
+            throws InvalidPhoneNumberException {
         long now = System.currentTimeMillis();
         
         String addr = getAddressPrefix(remoteAddr);
 
-        final String ipHash = hmac.createHmac(addr);
-        final String phoneHash = hmac.createHmac(phone);
+        final HmacDigest ipHash = hmac.createHmac(addr);
 
-        long ipRetryAfter = nextTryIP(ipHash, now);
-        long phoneRetryAfter = nextTryPhone(phoneHash, now);
-        long retryAfter = Math.max(ipRetryAfter, phoneRetryAfter);
+        long retryAfter = checkAndCount(ipHash, phoneHash, now);
         if (retryAfter > now) {
             // Explicitly log the IP address, as it might be needed for investigations
             logger.warn("Denying request from {}: rate limit (ip and/or phone) exceeded", addr);
-            // Don't count this request if it has been denied.
             return retryAfter - now;
         }
-        countIP(ipHash, now);
-        countPhone(phoneHash, now);
         return 0;
     }
 
@@ -86,11 +78,20 @@ public abstract class RateLimit {
 
     public abstract void periodicCleanup();
 
-    protected abstract long nextTryIP(String ipHash, long now);
-
-    protected abstract long nextTryPhone(String phoneHash, long now);
-
-    protected abstract void countIP(String ipHash, long now);
+    /**
+     * Give an expiry to limits stored without one by older versions. Only
+     * needed for Redis storage.
+     */
+    public void addMissingExpiry() {
+    }
 
-    protected abstract void countPhone(String phoneHash, long now);
+    /**
+     * Check the rate limits of the IP address and phone number and count the
+     * request when neither is exceeded.
+     *
+     * @return the time (in milliseconds) at which the next request will be
+     *         allowed when a limit is exceeded, in which case the request is
+     *         not counted. Otherwise a time not after now.
+     */
+    protected abstract long checkAndCount(HmacDigest ipHash, HmacDigest phoneHash, long now);
 }
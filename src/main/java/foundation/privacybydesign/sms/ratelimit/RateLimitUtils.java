@@ -1,6 +1,8 @@
 
 package foundation.privacybydesign.sms.ratelimit;
 
+import foundation.privacybydesign.sms.common.Hmac;
+
 public class RateLimitUtils {
     /// Returns the active rate limiter based on the configuration
     public static RateLimit getRateLimiter() {
@@ -10,4 +12,23 @@ public class RateLimitUtils {
         }
         return MemoryRateLimit.getInstance();
     }
+
+    /**
+     * Rate limit made-up IP addresses and phone numbers in a private
+     * MemoryRateLimit, so that the JIT has compiled that code before the
+     * first requests. With Redis this only checks that it can be reached.
+     */
+    public static void warmUp(int iterations, Hmac hmac) throws InvalidPhoneNumberException {
+        final RateLimit rateLimit = getRateLimiter();
+        if (rateLimit instanceof RedisRateLimit) {
+            ((RedisRateLimit) rateLimit).jedis.ping();
+            return;
+        }
+        final MemoryRateLimit scratch = new MemoryRateLimit(Math.max(iterations, 1));
+        for (int i = 0; i < iterations; i++) {
+            // Every address and phone number only once, so none are limited.
+            final String ip = "10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff);
+            scratch.rateLimited(ip, hmac.createHmac("warm-up " + i), hmac);
+        }
+    }
 }
@@ -1,174 +1,130 @@
 package foundation.privacybydesign.sms.ratelimit;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import foundation.privacybydesign.sms.common.HmacDigest;
 import foundation.privacybydesign.sms.redis.Redis;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisSentinelPool;
-import redis.clients.jedis.Response;
-import redis.clients.jedis.Transaction;
+import foundation.privacybydesign.sms.redis.RedisScript;
+import redis.clients.jedis.UnifiedJedis;
 import redis.clients.jedis.params.ScanParams;
 import redis.clients.jedis.resps.ScanResult;
 
+/**
+ * Store rate limits in Redis. See MemoryRateLimit for how they work.
+ *
+ * With a Redis Cluster the IP address and phone number limits are in
+ * different slots, so they are checked and counted one after the other: the
+ * IP address first, then the phone number. A request that is denied because
+ * of its phone number then still counts for its IP address.
+ *
+ * In the compact format (see Redis.isCompact) a limit is a single binary
+ * string, see rate-limit-compact.lua.
+ */
 public class RedisRateLimit extends RateLimit {
-    private static final long SECOND = 1000; // 1000ms = 1s
-    private static final long MINUTE = SECOND * 60;
-    private static final long HOUR = MINUTE * 60;
-    private static final long DAY = HOUR * 24;
+    private static final long DAY = 24 * 60 * 60 * 1000;
     private static final int IP_TIMEOUT = 10 * 1000; // timeout in seconds
     private static final int IP_TRIES = 3; // number of tries on first visit
+    private static final long PHONE_LIMIT_LIFETIME = 5 * DAY; // keep log 5 days for proper limiting
 
     private static Logger LOG = LoggerFactory.getLogger(RedisRateLimit.class);
-    private static RedisRateLimit instance;
+    private static volatile RedisRateLimit instance;
 
     private static final String ipLimitsNamespace = "ip-limits";
     private static final String phoneLimitsNamespace = "phone-limits:";
     private static final String timestampFieldName = "timestamp";
     private static final String triesFieldName = "tries";
+    private static final char compactIpTag = 'I';
+    private static final char compactPhoneTag = 'P';
 
     public static RateLimit getInstance() {
         if (instance == null) {
-            instance = new RedisRateLimit();
+            synchronized (RedisRateLimit.class) {
+                if (instance == null) {
+                    instance = new RedisRateLimit();
+                }
+            }
         }
         return instance;
     }
 
-    JedisSentinelPool pool;
+    // The rate limiting itself is done in Redis, see rate-limit.lua.
+    private static final RedisScript rateLimitScript = RedisScript.fromResource("rate-limit.lua");
+    private static final RedisScript compactRateLimitScript = RedisScript.fromResource("rate-limit-compact.lua");
+
+    UnifiedJedis jedis;
 
     RedisRateLimit() {
-        pool = Redis.createSentinelPoolFromEnv();
+        jedis = Redis.createClientFromEnv();
     }
 
     @Override
-    protected long nextTryIP(String ipHash, long now) {
-        final String key = Redis.createKey(ipLimitsNamespace, ipHash);
-
-        // Allow at most 1 try in each period (TIMEOUT), but kick in only
-        // after 3 tries. Thus while the user can do only 1 try per period
-        // over longer periods, the initial budget is 3 periods.
-        long limit = 0;
-        try (var jedis = pool.getResource()) {
-            // Ah, there was a request before.
-            if (jedis.exists(key)) {
-                try {
-                    limit = Long.parseLong(jedis.get(key));
-                } catch (NumberFormatException e) {
-                    LOG.error("failed to parse long from " + key + ": " + e.getMessage());
-                }
-            }
+    protected long checkAndCount(HmacDigest ipHash, HmacDigest phoneHash, long now) {
+        if (Redis.isCompact()) {
+            return checkAndCountCompact(ipHash, phoneHash, now);
         }
-
-        final long startLimit = startLimitIP(now);
-        if (limit < startLimit) {
-            // First visit or previous visit was long ago.
-            // Act like the last try was 3 periods ago.
-            limit = startLimit;
+        final String ipKey = Redis.createKey(ipLimitsNamespace, ipHash);
+        final String phoneKey = Redis.createKey(phoneLimitsNamespace, phoneHash);
+        final String time = Long.toString(now);
+        if (Redis.isCluster()) {
+            long retryAfter = (Long) rateLimitScript.eval(jedis, List.of(ipKey), List.of(time, "ip"));
+            if (retryAfter != 0) {
+                return retryAfter;
+            }
+            return (Long) rateLimitScript.eval(jedis, List.of(phoneKey), List.of(time, "phone"));
         }
-
-        // Add a period to the current limit.
-        limit += IP_TIMEOUT;
-        return limit;
-    }
-
-    private long startLimitIP(long now) {
-        return now - IP_TIMEOUT * IP_TRIES;
+        return (Long) rateLimitScript.eval(jedis, List.of(ipKey, phoneKey), List.of(time));
     }
 
-    @Override
-    protected synchronized long nextTryPhone(String phoneHash, long now) {
-        // Rate limiter durations (sort-of logarithmic):
-        // 1 10 second
-        // 2 5 minute
-        // 3 1 hour
-        // 4 24 hour
-        // 5+ 1 per day
-        // Keep log 5 days for proper limiting.
-
-        final String key = Redis.createKey(phoneLimitsNamespace, phoneHash);
-
-        Limit limit;
-
-        try (var jedis = pool.getResource()) {
-            limit = limitFromRedis(jedis, key);
-            if (limit == null) {
-                limit = new Limit(now);
-                limitToRedis(jedis, key, limit);
+    private long checkAndCountCompact(HmacDigest ipHash, HmacDigest phoneHash, long now) {
+        final byte[] ipKey = Redis.createCompactKey(compactIpTag, ipHash);
+        final byte[] phoneKey = Redis.createCompactKey(compactPhoneTag, phoneHash);
+        final byte[] time = Long.toString(now).getBytes(StandardCharsets.US_ASCII);
+        if (Redis.isCluster()) {
+            long retryAfter = (Long) compactRateLimitScript.evalBinary(jedis, List.of(ipKey),
+                    List.of(time, "ip".getBytes(StandardCharsets.US_ASCII)));
+            if (retryAfter != 0) {
+                return retryAfter;
             }
+            return (Long) compactRateLimitScript.evalBinary(jedis, List.of(phoneKey),
+                    List.of(time, "phone".getBytes(StandardCharsets.US_ASCII)));
         }
-
-        long nextTry; // timestamp when the next request is allowed
-        switch (limit.tries) {
-            case 0: // try 1: always succeeds
-                nextTry = limit.timestamp;
-                break;
-            case 1: // try 2: allowed after 10 seconds
-                nextTry = limit.timestamp + 10 * SECOND;
-                break;
-            case 2: // try 3: allowed after 5 minutes
-                nextTry = limit.timestamp + 5 * MINUTE;
-                break;
-            case 3: // try 4: allowed after 3 hours
-                nextTry = limit.timestamp + 3 * HOUR;
-                break;
-            case 4: // try 5: allowed after 24 hours
-                nextTry = limit.timestamp + 24 * HOUR;
-                break;
-            default:
-                throw new IllegalStateException("invalid tries count");
+        final List<byte[]> keys = new ArrayList<>(4);
+        keys.add(ipKey);
+        keys.add(phoneKey);
+        if (Redis.readsOriginalFormat()) {
+            keys.add(Redis.createKey(ipLimitsNamespace, ipHash).getBytes(StandardCharsets.UTF_8));
+            keys.add(Redis.createKey(phoneLimitsNamespace, phoneHash).getBytes(StandardCharsets.UTF_8));
         }
-        return nextTry;
+        return (Long) compactRateLimitScript.evalBinary(jedis, keys, List.of(time));
     }
 
-    @Override
-    protected synchronized void countIP(String ipHash, long now) {
-        final long nextTry = nextTryIP(ipHash, now);
-        if (nextTry > now) {
-            throw new IllegalStateException("counting rate limit while over the limit");
-        }
-
-        final String key = Redis.createKey(ipLimitsNamespace, ipHash);
-        try (var jedis = pool.getResource()) {
-            jedis.set(key, Long.toString(nextTry));
-        }
+    private static long ipLimitExpiresAt(long limit) {
+        return limit + IP_TIMEOUT * IP_TRIES;
     }
 
-    // Count the usage of this rate limit - adding to the budget for this
-    // phone number.
+    /**
+     * Limits expire by themselves in Redis, so there is nothing to clean up.
+     */
     @Override
-    protected synchronized void countPhone(String phoneHash, long now) {
-        final long nextTry = nextTryPhone(phoneHash, now);
-
-        try (var jedis = pool.getResource()) {
-            final String key = Redis.createKey(phoneLimitsNamespace, phoneHash);
-            Limit limit = limitFromRedis(jedis, key);
-
-            if (limit == null) {
-                throw new IllegalStateException("limit not found in redis");
-            }
-
-            if (nextTry > now) {
-                throw new IllegalStateException("counting rate limit while over the limit");
-            }
-
-            limit.tries = Math.min(limit.tries + 1, 5); // add 1, max at 5
-            // If the last usage was e.g. ≥2 days ago, we should allow them 2 tries
-            // extra tries this day.
-            long lastTryDaysAgo = (now - limit.timestamp) / DAY;
-            long bonusTries = limit.tries - lastTryDaysAgo;
-            if (bonusTries >= 1) {
-                limit.tries = (int) bonusTries;
-            }
-            limit.timestamp = now;
-
-            limitToRedis(jedis, key, limit);
-        }
+    public void periodicCleanup() {
     }
 
+    /**
+     * Give an expiry to limits stored by older versions, which didn't set
+     * one. This scans all limits, so it only runs once, on one node. Older
+     * versions didn't support Redis Cluster.
+     */
     @Override
-    public void periodicCleanup() {
+    public void addMissingExpiry() {
+        if (Redis.isCluster() || !Redis.claimOneOffTask(jedis, "expiry-limits")) {
+            return;
+        }
+        LOG.info("Adding an expiry to rate limits without one");
         cleanUpIpLimits();
         cleanUpPhoneLimits();
     }
@@ -178,31 +134,11 @@ public class RedisRateLimit extends RateLimit {
      * @param key
      * @return null if limit was not found
      */
-    static Limit limitFromRedis(Jedis jedis, String key) {
-        // doing a redis transaction because there's multiple values to be set
-        // and setting them atomically ensures no race condition can occur
-        jedis.watch(key);
-        Transaction transaction = jedis.multi();
-
-        final Response<String> tsResult = transaction.hget(key, timestampFieldName);
-        final Response<String> triesResponse = transaction.hget(key, triesFieldName);
-
-        final List<Object> transactionResult = transaction.exec();
-
-        if (transactionResult == null) {
-            LOG.error("failed to get limit from redis: exec result == null");
-            return null;
-        }
-
-        for (var r : transactionResult) {
-            if (r instanceof Exception) {
-                LOG.error("an error occurred while getting limit from redis: " + ((Exception) r).getMessage());
-                return null;
-            }
-        }
-
-        final String ts = tsResult.get();
-        final String tries = triesResponse.get();
+    static Limit limitFromRedis(UnifiedJedis jedis, String key) {
+        // Both fields in one command, so they belong together.
+        final List<String> fields = jedis.hmget(key, timestampFieldName, triesFieldName);
+        final String ts = fields.get(0);
+        final String tries = fields.get(1);
 
         try {
             return new Limit(Long.parseLong(ts), Integer.parseInt(tries));
@@ -212,78 +148,50 @@ public class RedisRateLimit extends RateLimit {
         }
     }
 
-    static void limitToRedis(Jedis jedis, String key, Limit limit) {
-        jedis.watch(key);
-        Transaction transaction = jedis.multi();
-
-        transaction.hset(key, timestampFieldName, Long.toString(limit.timestamp));
-        transaction.hset(key, triesFieldName, Integer.toString(limit.tries));
-
-        final List<Object> results = transaction.exec();
-        if (results == null) {
-            LOG.error("failed to put limit to redis: exec result == null");
-            return;
-        }
-
-        for (var r : results) {
-            if (r instanceof Exception) {
-                LOG.error("an error occurred while setting limit to redis: " + ((Exception) r).getMessage());
-            }
-        }
-    }
-
-    // TODO: This is not the idiomatic way to delete expired items in Redis,
-    // use the built in `expire` command instead
     private void cleanUpIpLimits() {
-        final long now = System.currentTimeMillis();
-
         final String pattern = Redis.createNamespace(ipLimitsNamespace) + "*";
         ScanParams scanParams = new ScanParams().match(pattern);
         String cursor = "0";
 
-        try (var jedis = pool.getResource()) {
-            do {
-                ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
-                List<String> keys = scanResult.getResult();
-                cursor = scanResult.getCursor();
+        do {
+            ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+            List<String> keys = scanResult.getResult();
+            cursor = scanResult.getCursor();
 
-                for (String key : keys) {
-                    String word = jedis.get(key);
-                    try {
-                        long value = Long.parseLong(word);
-                        if (value < startLimitIP(now)) {
-                            jedis.del(key);
-                        }
-                    } catch (NumberFormatException e) {
-                        LOG.error("failed to parse: " + e.getMessage());
-                    }
+            for (String key : keys) {
+                if (jedis.pttl(key) != -1) {
+                    continue; // already has an expiry (or is gone)
                 }
-            } while (!cursor.equals("0")); // continue until the cursor wraps around
-        }
+                String word = jedis.get(key);
+                try {
+                    // Deletes the key when the time is in the past.
+                    jedis.pexpireAt(key, ipLimitExpiresAt(Long.parseLong(word)));
+                } catch (NumberFormatException e) {
+                    LOG.error("failed to parse: " + e.getMessage());
+                }
+            }
+        } while (!cursor.equals("0")); // continue until the cursor wraps around
     }
 
-    // TODO: This is not the idiomatic way to delete expired items in Redis,
-    // use the built in `expire` command instead
     private void cleanUpPhoneLimits() {
-        final long now = System.currentTimeMillis();
-
         final String pattern = Redis.createNamespace(phoneLimitsNamespace) + "*";
         ScanParams scanParams = new ScanParams().match(pattern);
         String cursor = "0";
 
-        try (var jedis = pool.getResource()) {
-            do {
-                ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
-                List<String> keys = scanResult.getResult();
-                cursor = scanResult.getCursor();
+        do {
+            ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+            List<String> keys = scanResult.getResult();
+            cursor = scanResult.getCursor();
 
-                for (String key : keys) {
-                    Limit limit = limitFromRedis(jedis, key);
-                    if (limit != null && limit.timestamp < now - 5 * DAY) {
-                        jedis.del(key);
-                    }
+            for (String key : keys) {
+                if (jedis.pttl(key) != -1) {
+                    continue;
                 }
-            } while (!cursor.equals("0")); // continue until the cursor wraps around
-        }
+                Limit limit = limitFromRedis(jedis, key);
+                if (limit != null) {
+                    jedis.pexpireAt(key, limit.timestamp + PHONE_LIMIT_LIFETIME);
+                }
+            }
+        } while (!cursor.equals("0")); // continue until the cursor wraps around
     }
 }
@@ -1,14 +1,22 @@
 package foundation.privacybydesign.sms.redis;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.Set;
 
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import redis.clients.jedis.ConnectionPoolConfig;
 import redis.clients.jedis.DefaultJedisClientConfig;
 import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.JedisClientConfig;
-import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisSentineled;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.SetParams;
 
 
 /**
@@ -17,6 +25,53 @@ import redis.clients.jedis.JedisSentinelPool;
 public class Redis {
     final private static Logger LOG = LoggerFactory.getLogger(Redis.class);
     final private static String KEY_PREFIX = System.getenv("REDIS_KEY_PREFIX") + ":";
+    final private static byte[] KEY_PREFIX_BYTES = KEY_PREFIX.getBytes(StandardCharsets.UTF_8);
+    final private static String CLUSTER_NODES = System.getenv("REDIS_CLUSTER_NODES");
+    final private static String KEY_FORMAT = System.getenv("REDIS_KEY_FORMAT");
+    final private static String MIGRATE_EXPIRY = System.getenv("REDIS_MIGRATE_EXPIRY");
+    final private static int DEFAULT_MAX_CONNECTIONS = 64;
+
+    /**
+     * Whether a Redis Cluster is used instead of a Redis Sentinel.
+     */
+    public static boolean isCluster() {
+        return CLUSTER_NODES != null && !CLUSTER_NODES.isEmpty();
+    }
+
+    /**
+     * Whether keys and values are stored in the compact format (REDIS_KEY_FORMAT 2)
+     * instead of the original one (1, the default).
+     */
+    public static boolean isCompact() {
+        return "2".equals(KEY_FORMAT);
+    }
+
+    /**
+     * Whether the compact format falls back to the keys in the original format,
+     * while they haven't expired yet. Those keys are in other hash slots than
+     * the compact ones, so they can't be read with a Redis Cluster.
+     */
+    public static boolean readsOriginalFormat() {
+        return isCompact() && !isCluster();
+    }
+
+    /**
+     * Whether keys stored by older versions without an expiry should be given
+     * one (REDIS_MIGRATE_EXPIRY 1). This scans the whole keyspace, so it is
+     * off by default.
+     */
+    public static boolean migratesExpiry() {
+        return "1".equals(MIGRATE_EXPIRY);
+    }
+
+    /**
+     * Claim a one-off task: returns true for the first caller only, on any
+     * node. The marker key doesn't expire, so the task doesn't run again after
+     * a restart or on the next deploy; delete it to run the task again.
+     */
+    public static boolean claimOneOffTask(UnifiedJedis jedis, String name) {
+        return "OK".equals(jedis.set(createNamespace("done") + name, "1", SetParams.setParams().nx()));
+    }
 
     public static String createNamespace(String namespace) {
         return KEY_PREFIX + namespace + ":";
@@ -28,24 +83,91 @@ public class Redis {
      * In this case we add the prefix for this component (e.g. sms-issuer) and then 
      * a namespace for the different types inside this component (e.g. the token requests).
      * They will be formatted in the following format: `<component>:<namespace>:<key>`
+     *
+     * With a Redis Cluster the key is a hash tag: `<component>:<namespace>:{<key>}:`.
+     * Only the part between the braces is hashed, so the keys of one phone number in
+     * different namespaces are in the same slot and can be used in one script.
      */
     public static String createKey(String namespace, String key) {
+        if (isCluster()) {
+            return createNamespace(namespace) + "{" + key + "}:";
+        }
         return createNamespace(namespace) + key + ":";
     }
 
     /**
-     * Creates a connection to a sentinel Redis using credentials loaded from environment variables.
+     * A key in the original format for a HMAC, which is Base64 encoded.
+     */
+    public static String createKey(String namespace, HmacDigest hmac) {
+        return createKey(namespace, hmac.toString());
+    }
+
+    /**
+     * A key in the compact format: the prefix, a one character tag for the
+     * type (see the stores) and the raw bytes of the HMAC, so 33 bytes after the
+     * prefix instead of a namespace and 44 characters of Base64. The tags are
+     * upper case, unlike the namespaces of the original format, so the keys of
+     * the two formats can't be mistaken for each other.
+     *
+     * With a Redis Cluster the HMAC is in a hash tag, like in createKey. The tag
+     * starts with a fixed character, because the HMAC itself might start with
+     * the closing brace.
+     */
+    public static byte[] createCompactKey(char tag, HmacDigest hmac) {
+        final byte[] prefix = KEY_PREFIX_BYTES;
+        final boolean cluster = isCluster();
+        final byte[] key = new byte[prefix.length + 1 + Hmac.LENGTH + (cluster ? 3 : 0)];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        int pos = prefix.length;
+        key[pos++] = (byte) tag;
+        if (cluster) {
+            key[pos++] = '{';
+            key[pos++] = '=';
+        }
+        hmac.copyTo(key, pos);
+        if (cluster) {
+            key[key.length - 1] = '}';
+        }
+        return key;
+    }
+
+    /**
+     * Creates a client for a Redis Cluster when REDIS_CLUSTER_NODES is set,
+     * otherwise for a sentinel Redis, using credentials loaded from environment variables.
      * See the readme for the expected env vars.
      */
-    public static JedisSentinelPool createSentinelPoolFromEnv() {
+    public static UnifiedJedis createClientFromEnv() {
         final Config redisConfig = configFromEnv();
-        HostAndPort address = new HostAndPort(redisConfig.host, redisConfig.port);
         JedisClientConfig config = DefaultJedisClientConfig.builder()
                 .ssl(false)
                 .user(redisConfig.username)
                 .password(redisConfig.password)
                 .build();
-        return new JedisSentinelPool(redisConfig.masterName, Set.of(address), config, config);
+        // Every request thread needs its own connection while it waits for
+        // Redis, so the pool shouldn't be smaller than the number of threads
+        // that can handle /send and /verify at the same time. With a cluster
+        // this is the pool size per node.
+        ConnectionPoolConfig poolConfig = new ConnectionPoolConfig();
+        poolConfig.setMaxTotal(redisConfig.maxConnections);
+        poolConfig.setMaxIdle(redisConfig.maxConnections);
+        if (isCluster()) {
+            return new JedisCluster(parseNodes(CLUSTER_NODES), config, poolConfig);
+        }
+        HostAndPort address = new HostAndPort(redisConfig.host, redisConfig.port);
+        return new JedisSentineled(redisConfig.masterName, config, poolConfig, Set.of(address), config);
+    }
+
+    /**
+     * Parse a comma separated list of host:port pairs.
+     */
+    static Set<HostAndPort> parseNodes(String nodes) {
+        Set<HostAndPort> result = new HashSet<>();
+        for (String node : nodes.split(",")) {
+            if (!node.isBlank()) {
+                result.add(HostAndPort.from(node.trim()));
+            }
+        }
+        return result;
     }
 
     public static class Config {
@@ -54,13 +176,15 @@ public class Redis {
         String username;
         String masterName;
         String password;
+        int maxConnections;
 
-        Config(String host, int port, String masterName, String username, String password) {
+        Config(String host, int port, String masterName, String username, String password, int maxConnections) {
             this.host = host;
             this.port = port;
             this.masterName = masterName;
             this.username = username;
             this.password = password;
+            this.maxConnections = maxConnections;
         }
     }
 
@@ -68,13 +192,17 @@ public class Redis {
         String host = System.getenv("REDIS_HOST");
 
         try {
-            int port = Integer.parseInt(System.getenv("REDIS_PORT"));
+            // Not needed for a cluster, which uses REDIS_CLUSTER_NODES.
+            String portString = System.getenv("REDIS_PORT");
+            int port = portString == null && isCluster() ? 0 : Integer.parseInt(portString);
             String username = System.getenv("REDIS_USERNAME");
             String password = System.getenv("REDIS_PASSWORD");
             String masterName = System.getenv("REDIS_MASTER_NAME");
-            return new Config(host, port, masterName, username, password);
+            String maxConnections = System.getenv("REDIS_MAX_CONNECTIONS");
+            return new Config(host, port, masterName, username, password,
+                    maxConnections == null ? DEFAULT_MAX_CONNECTIONS : Integer.parseInt(maxConnections));
         } catch (NumberFormatException e) {
-            LOG.error("failed to parse port as number: " + e.getMessage());
+            LOG.error("failed to parse port or max connections as number: " + e.getMessage());
             return null;
         }
     }
@@ -0,0 +1,77 @@
+package foundation.privacybydesign.sms.redis;
+
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A Lua script that is run in Redis with EVALSHA, so only its hash is sent
+ * with every call. When Redis doesn't know the script (the first call on a
+ * node, or after a restart or failover) it is sent with EVAL, which also
+ * puts it in the script cache of that node.
+ */
+public class RedisScript {
+    private final String source;
+    private final String sha;
+
+    public RedisScript(String source) {
+        this.source = source;
+        this.sha = sha1(source);
+    }
+
+    /**
+     * Read a script from the resources next to this class.
+     */
+    public static RedisScript fromResource(String name) {
+        try (InputStream stream = RedisScript.class.getResourceAsStream(name)) {
+            if (stream == null) {
+                throw new IllegalArgumentException("Redis script not found: " + name);
+            }
+            return new RedisScript(new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read Redis script " + name, e);
+        }
+    }
+
+    private static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String getSha() {
+        return sha;
+    }
+
+    public Object eval(UnifiedJedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.eval(source, keys, args);
+        }
+    }
+
+    /**
+     * Same as eval, for binary keys and arguments.
+     */
+    public Object evalBinary(UnifiedJedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha.getBytes(StandardCharsets.US_ASCII), keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.eval(source.getBytes(StandardCharsets.UTF_8), keys, args);
+        }
+    }
+}
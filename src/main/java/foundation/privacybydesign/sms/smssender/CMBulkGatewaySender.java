@@ -0,0 +1,324 @@
+package foundation.privacybydesign.sms.smssender;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import foundation.privacybydesign.sms.CMGatewayConfiguration;
+import foundation.privacybydesign.sms.SMSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Implements the CM Gateway JSON endpoint, sending messages in bulk.
+ * https://www.cm.com/en-en/app/docs/api/business-messaging-api/1.0/index#json
+ *
+ * Messages from concurrent senders are collected and posted together in one
+ * request. A batch is sent as soon as it contains bulk_size messages, or when
+ * bulk_linger_ms has passed since the first message of the batch. The
+ * per-message statuses in the response are mapped back to the original
+ * callers, so a rejected recipient only fails its own message.
+ *
+ * Note that send() blocks until the batch has been submitted, so batches
+ * can't be larger than the number of SMS dispatch workers. When waiting for
+ * the batch times out, the message may still be sent, so that error must not
+ * be retried.
+ */
+public class CMBulkGatewaySender extends Sender {
+    private static final Logger logger = LoggerFactory.getLogger(CMBulkGatewaySender.class);
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+    // Request level error codes for which CM refuses the whole request before
+    // handling any message: authentication failed, insufficient balance and
+    // invalid product token.
+    private static final Set<Integer> REQUEST_REJECTED_CODES = Set.of(101, 102, 103);
+
+    private final GatewayHttpClient client = GatewayHttpClient.fromConfiguration(SMSConfiguration.getInstance());
+    private final BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService batchExecutor;
+    private final Thread flusher;
+    private final CMGatewayConfiguration conf;
+    private volatile boolean closed = false;
+
+    private static class PendingMessage {
+        final String phone;
+        final String message;
+        final String reference;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingMessage(String phone, String message, String reference) {
+            this.phone = phone;
+            this.message = message;
+            this.reference = reference;
+        }
+    }
+
+    public CMBulkGatewaySender() {
+        this(SMSConfiguration.getInstance().getCMGatewayConfiguration());
+    }
+
+    public CMBulkGatewaySender(CMGatewayConfiguration conf) {
+        this.conf = conf;
+        batchExecutor = Executors.newFixedThreadPool(SMSConfiguration.getInstance().getSMSSenderMaxConnections(), r -> {
+            Thread thread = new Thread(r, "cm-bulk-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher = new Thread(this::collectBatches, "cm-bulk-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message) throws IOException {
+        sendMessage(phone, message, null);
+    }
+
+    /**
+     * The reference of the message is sent as CM reference, like in
+     * CMGatewaySender.
+     */
+    @Override
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
+        if (conf == null) {
+            throw new IOException("CM gateway configuration not found");
+        }
+        if (closed) {
+            throw new MessageNotSentException("CM bulk sender is closed");
+        }
+
+        PendingMessage pending = new PendingMessage(CMGatewaySender.toCMPhoneNumber(phone), message,
+                reference != null ? reference : conf.getReference());
+        queue.add(pending);
+
+        // The batch is sent at most bulk_linger_ms after this message was
+        // queued, after which connecting and reading the response both time out.
+        SMSConfiguration smsConf = SMSConfiguration.getInstance();
+        int connectTimeout = smsConf.getSMSSenderConnectTimeout();
+        int readTimeout = smsConf.getSMSSenderTimeout();
+        try {
+            if (connectTimeout > 0 && readTimeout > 0) {
+                pending.result.get((long) connectTimeout + readTimeout + conf.getBulkLingerMillis(),
+                        TimeUnit.MILLISECONDS);
+            } else {
+                pending.result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Sending bulk message failed", e.getCause());
+        } catch (TimeoutException e) {
+            // The batch may still be (or have been) sent, so the outcome is unknown.
+            throw new IOException("Timeout waiting for CM bulk request, the message may still be sent");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for CM bulk request");
+        }
+    }
+
+    /**
+     * Collect queued messages into batches and hand them off to the batch
+     * executor. Runs on the flusher thread.
+     */
+    private void collectBatches() {
+        while (true) {
+            List<PendingMessage> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(conf.getBulkLingerMillis());
+                while (batch.size() < conf.getBulkSize()) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingMessage next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batchExecutor.execute(() -> sendBatch(batch));
+            } catch (InterruptedException e) {
+                // Closing: still send the batch collected so far, close()
+                // sends what is left in the queue.
+                if (!batch.isEmpty()) {
+                    batchExecutor.execute(() -> sendBatch(batch));
+                }
+                return;
+            } catch (Exception e) {
+                logger.error("CM bulk flusher failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Stop collecting batches, send the messages that are still queued and
+     * wait for the requests in flight.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+
+            List<PendingMessage> remaining = new ArrayList<>();
+            queue.drainTo(remaining);
+            for (int i = 0; i < remaining.size(); i += conf.getBulkSize()) {
+                List<PendingMessage> batch = remaining.subList(i, Math.min(i + conf.getBulkSize(), remaining.size()));
+                batchExecutor.execute(() -> sendBatch(batch));
+            }
+
+            batchExecutor.shutdown();
+            if (!batchExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("CM bulk requests still running on shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendBatch(List<PendingMessage> batch) {
+        try {
+            HttpResponse<String> response = client.send(buildRequest(batch),
+                    HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            handleResponse(batch, response.statusCode(), response.body());
+        } catch (Exception e) {
+            for (PendingMessage pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private HttpRequest buildRequest(List<PendingMessage> batch) throws IOException {
+        JsonObject authentication = new JsonObject();
+        authentication.addProperty("producttoken", conf.getProductToken());
+
+        JsonArray messages = new JsonArray();
+        for (PendingMessage pending : batch) {
+            JsonObject number = new JsonObject();
+            number.addProperty("number", pending.phone);
+            JsonArray to = new JsonArray();
+            to.add(number);
+
+            JsonObject body = new JsonObject();
+            body.addProperty("type", "auto");
+            body.addProperty("content", pending.message);
+
+            JsonObject msg = new JsonObject();
+            msg.addProperty("from", conf.getFrom());
+            msg.add("to", to);
+            msg.add("body", body);
+            msg.addProperty("reference", pending.reference);
+            messages.add(msg);
+        }
+
+        JsonObject content = new JsonObject();
+        content.add("authentication", authentication);
+        content.add("msg", messages);
+        JsonObject root = new JsonObject();
+        root.add("messages", content);
+
+        URI uri = URI.create(CMGatewaySender.getEndpoint(conf) + "/v1.0/message");
+        return client.newRequest(uri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(root.toString(), StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private static boolean isRejected(int status) {
+        return status >= 400 && status < 500;
+    }
+
+    /**
+     * Map the per-message statuses in the CM response back to the pending
+     * messages. Messages are matched on recipient number, in order.
+     */
+    private static void handleResponse(List<PendingMessage> batch, int status, String text) {
+        JsonObject root;
+        try {
+            root = JsonParser.parseString(text).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            String message = String.format("CM gateway returned status code %d", status);
+            IOException error = isRejected(status)
+                    ? new MessageNotSentException(message)
+                    : new IOException(message);
+            batch.forEach(pending -> pending.result.completeExceptionally(error));
+            return;
+        }
+
+        Map<String, ArrayDeque<PendingMessage>> byPhone = new HashMap<>();
+        for (PendingMessage pending : batch) {
+            byPhone.computeIfAbsent(pending.phone, k -> new ArrayDeque<>()).add(pending);
+        }
+
+        JsonElement messages = root.get("messages");
+        if (messages != null && messages.isJsonArray()) {
+            for (JsonElement element : messages.getAsJsonArray()) {
+                JsonObject result = element.getAsJsonObject();
+                ArrayDeque<PendingMessage> candidates = byPhone.get(getString(result, "to"));
+                PendingMessage pending = candidates == null ? null : candidates.poll();
+                if (pending == null) {
+                    continue;
+                }
+                if (getInt(result, "messageErrorCode") == 0 && !"Rejected".equals(getString(result, "status"))) {
+                    pending.result.complete(null);
+                } else {
+                    pending.result.completeExceptionally(new MessageNotSentException(String.format(
+                            "Error response received from CM: %s", getString(result, "messageDetails"))));
+                }
+            }
+        }
+
+        // Messages that are not mentioned in the response share the status
+        // of the request as a whole.
+        IOException error = null;
+        int errorCode = getInt(root, "errorCode");
+        if (status != 200 || errorCode != 0) {
+            String message = String.format("Error response received from CM: %s", getString(root, "details"));
+            // Other errors (like 999, unknown error) may come after (part of)
+            // the batch was sent.
+            error = isRejected(status) || REQUEST_REJECTED_CODES.contains(errorCode)
+                    ? new MessageNotSentException(message)
+                    : new IOException(message);
+        }
+        for (ArrayDeque<PendingMessage> remaining : byPhone.values()) {
+            for (PendingMessage pending : remaining) {
+                if (error == null) {
+                    pending.result.complete(null);
+                } else {
+                    pending.result.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    private static int getInt(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? 0 : element.getAsInt();
+    }
+}
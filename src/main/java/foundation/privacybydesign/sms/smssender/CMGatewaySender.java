@@ -4,36 +4,91 @@ import foundation.privacybydesign.sms.CMGatewayConfiguration;
 import foundation.privacybydesign.sms.SMSConfiguration;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.TreeMap;
 
 /**
  * Implements CM Gateway HTTP GET endpoint
  * https://www.cm.com/en-en/app/docs/api/business-messaging-api/1.0/index#http-get
  */
 public class CMGatewaySender extends Sender {
+    private final GatewayHttpClient client = GatewayHttpClient.fromConfiguration(SMSConfiguration.getInstance());
+    private final CMGatewayConfiguration conf;
+
+    private static final byte[] REFERENCE_PARAMETER = "&reference=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TO_PARAMETER = "&to=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BODY_PARAMETER = "&body=".getBytes(StandardCharsets.US_ASCII);
+
+    // The part of the URL that is the same for every message, up to and
+    // including the product token. Built when the first message is sent.
+    private volatile byte[] urlPrefix;
+
+    public CMGatewaySender() {
+        this(SMSConfiguration.getInstance().getCMGatewayConfiguration());
+    }
+
+    public CMGatewaySender(CMGatewayConfiguration conf) {
+        this.conf = conf;
+    }
+
     @Override
     protected void sendMessage(String phone, String message) throws IOException {
-        CMGatewayConfiguration conf = SMSConfiguration.getInstance().getCMGatewayConfiguration();
+        sendMessage(phone, message, null);
+    }
+
+    /**
+     * The reference of the message is sent as CM reference, so it can be
+     * found in the delivery reports. Without one, the configured reference
+     * is sent.
+     */
+    @Override
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
         if (conf == null) {
             throw new IOException("CM gateway configuration not found");
         }
 
-        // CM expects 00 to be used as international prefix, instead of the + prefix in the E164 phone number format.
+        URI uri = constructURI(toCMPhoneNumber(phone), message, reference != null ? reference : conf.getReference());
+        HttpRequest request = client.newRequest(uri).GET().build();
+
+        // Always read the whole body, so the connection can be reused.
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() >= 400 && response.statusCode() < 500) {
+            throw new MessageNotSentException(String.format("CM gateway rejected the message with status code %d",
+                    response.statusCode()));
+        } else if (response.statusCode() != 200) {
+            throw new IOException(String.format("CM gateway returned status code %d", response.statusCode()));
+        }
+        String text = response.body();
+
+        // CM returns empty string when the SMS is successfully sent, and an
+        // error message when it rejects it.
+        if (text == null) {
+            throw new IOException("CM response could not be parsed");
+        } else if (!text.isEmpty()) {
+            throw new MessageNotSentException(String.format("Error response received from CM: %s", text));
+        }
+    }
+
+    /**
+     * CM expects 00 to be used as international prefix, instead of the + prefix in the E164 phone number format.
+     */
+    static String toCMPhoneNumber(String phone) throws IOException {
         if (phone.startsWith("+")) {
-            phone = String.format("00%s", phone.substring(1));
+            return String.format("00%s", phone.substring(1));
         } else if (!phone.startsWith("00")){
             throw new IOException("CM expects internationalized phone numbers");
         }
+        return phone;
+    }
 
+    /**
+     * Returns the configured API endpoint without trailing slash.
+     */
+    static String getEndpoint(CMGatewayConfiguration conf) throws IOException {
         String endpoint = conf.getApiEndpoint();
         if (!endpoint.startsWith("https://")) {
             throw new IOException("CM gateway API endpoint should use https");
@@ -41,57 +96,41 @@ public class CMGatewaySender extends Sender {
         if (endpoint.endsWith("/")) {
             endpoint = endpoint.substring(0, endpoint.length() - 1);
         }
+        return endpoint;
+    }
 
-        Map<String,String> parameters = new TreeMap<>();
-        parameters.put("producttoken", conf.getProductToken());
-        parameters.put("from", conf.getFrom());
-        parameters.put("to", phone);
-        parameters.put("body", message);
-        parameters.put("reference", conf.getReference());
-
-        URL url = this.constructURL(String.format("%s/gateway.ashx", endpoint), parameters);
-
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setConnectTimeout(SMSConfiguration.getInstance().getSMSSenderTimeout());
-        connection.setReadTimeout(SMSConfiguration.getInstance().getSMSSenderTimeout());
-
-        int responseStatus = connection.getResponseCode();
-        if (responseStatus != 200) {
-            throw new IOException(String.format("CM gateway returned status code %d", responseStatus));
-        }
-
-        InputStream responseBody = connection.getInputStream();
-        String text;
-        try (Scanner scanner = new Scanner(responseBody, StandardCharsets.UTF_8.name()).useDelimiter("\\A")) {
-            text = scanner.hasNext() ? scanner.next() : "";
-        }
-
-        // CM returns empty string when the SMS is successfully sent
-        if (text == null) {
-            throw new IOException("CM response could not be parsed");
-        } else if (!text.isEmpty()) {
-            throw new IOException(String.format("Error response received from CM: %s", text));
+    private byte[] getURLPrefix() throws IOException {
+        byte[] prefix = urlPrefix;
+        if (prefix == null) {
+            String parameters = "from=" + new String(FormEncoding.encode(conf.getFrom()), StandardCharsets.US_ASCII)
+                    + "&producttoken=" + new String(FormEncoding.encode(conf.getProductToken()), StandardCharsets.US_ASCII);
+            prefix = (getEndpoint(conf) + "/gateway.ashx?" + parameters).getBytes(StandardCharsets.UTF_8);
+            urlPrefix = prefix;
         }
+        return prefix;
     }
 
-    private URL constructURL(String endpoint, Map<String, String> parameters) throws MalformedURLException {
-        StringBuilder builder = new StringBuilder(endpoint);
-        builder.append("?");
-        for (Map.Entry<String,String> parameter : parameters.entrySet()) {
-            // We only need alphabetic url parameter keys, so we reject all others.
-            if (!parameter.getKey().matches("^[a-z]+$")) {
-                throw new MalformedURLException("Invalid URL parameters");
-            }
-            try {
-                String value = URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8.name());
-                builder.append(String.format("%s=%s&", parameter.getKey(), value));
-            } catch (UnsupportedEncodingException _e) {
-                // Encoding is hardcoded in the code, so this catch is unreachable.
-                throw new RuntimeException("Invalid encoding?");
-            }
+    /**
+     * Build the request URL: the fixed prefix with the encoded reference,
+     * recipient and message appended.
+     */
+    private URI constructURI(String phone, String message, String reference) throws IOException {
+        byte[] prefix = getURLPrefix();
+        byte[] out = new byte[prefix.length + REFERENCE_PARAMETER.length + FormEncoding.encodedLength(reference)
+                + TO_PARAMETER.length + FormEncoding.encodedLength(phone)
+                + BODY_PARAMETER.length + FormEncoding.encodedLength(message)];
+        System.arraycopy(prefix, 0, out, 0, prefix.length);
+        int offset = prefix.length;
+        System.arraycopy(REFERENCE_PARAMETER, 0, out, offset, REFERENCE_PARAMETER.length);
+        offset = FormEncoding.encode(reference, out, offset + REFERENCE_PARAMETER.length);
+        System.arraycopy(TO_PARAMETER, 0, out, offset, TO_PARAMETER.length);
+        offset = FormEncoding.encode(phone, out, offset + TO_PARAMETER.length);
+        System.arraycopy(BODY_PARAMETER, 0, out, offset, BODY_PARAMETER.length);
+        FormEncoding.encode(message, out, offset + BODY_PARAMETER.length);
+        try {
+            return new URI(new String(out, StandardCharsets.UTF_8));
+        } catch (URISyntaxException e) {
+            throw new MalformedURLException("Invalid URL parameters");
         }
-        // Remove final '&' character (or the '?' character if there are no parameters)
-        builder.deleteCharAt(builder.length() - 1);
-        return new URL(builder.toString());
     }
 }
@@ -0,0 +1,13 @@
+package foundation.privacybydesign.sms.smssender;
+
+/**
+ * The SMS dispatch queue is full and the overflow policy doesn't allow
+ * the message to be sent in another way.
+ */
+public class DispatchRejectedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public DispatchRejectedException() {
+        super();
+    }
+}
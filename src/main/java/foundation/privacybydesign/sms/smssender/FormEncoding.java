@@ -0,0 +1,92 @@
+package foundation.privacybydesign.sms.smssender;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * application/x-www-form-urlencoded encoding straight into a byte array,
+ * producing the same output as URLEncoder.encode(s, "UTF-8") without the
+ * intermediate strings.
+ */
+class FormEncoding {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private FormEncoding() {
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    /**
+     * Number of bytes needed to encode the given string.
+     */
+    static int encodedLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isUnreserved(c) || c == ' ') {
+                length += 1;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800) {
+                length += 6;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 12;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 3; // unpaired surrogate, encoded as '?'
+            } else {
+                length += 9;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode the string into the buffer at the given offset, which must have
+     * room for encodedLength(s) bytes. Returns the offset after the encoded
+     * bytes.
+     */
+    static int encode(String s, byte[] out, int offset) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isUnreserved(c)) {
+                out[offset++] = (byte) c;
+            } else if (c == ' ') {
+                out[offset++] = '+';
+            } else if (c < 0x80) {
+                offset = percent(c, out, offset);
+            } else if (c < 0x800) {
+                offset = percent(0xC0 | (c >> 6), out, offset);
+                offset = percent(0x80 | (c & 0x3F), out, offset);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                offset = percent(0xF0 | (cp >> 18), out, offset);
+                offset = percent(0x80 | ((cp >> 12) & 0x3F), out, offset);
+                offset = percent(0x80 | ((cp >> 6) & 0x3F), out, offset);
+                offset = percent(0x80 | (cp & 0x3F), out, offset);
+            } else if (Character.isSurrogate(c)) {
+                offset = percent('?', out, offset);
+            } else {
+                offset = percent(0xE0 | (c >> 12), out, offset);
+                offset = percent(0x80 | ((c >> 6) & 0x3F), out, offset);
+                offset = percent(0x80 | (c & 0x3F), out, offset);
+            }
+        }
+        return offset;
+    }
+
+    static byte[] encode(String s) {
+        byte[] out = new byte[encodedLength(s)];
+        encode(s, out, 0);
+        return out;
+    }
+
+    private static int percent(int b, byte[] out, int offset) {
+        out[offset++] = '%';
+        out[offset++] = HEX[(b >> 4) & 0xF];
+        out[offset++] = HEX[b & 0xF];
+        return offset;
+    }
+}
@@ -0,0 +1,129 @@
+package foundation.privacybydesign.sms.smssender;
+
+import foundation.privacybydesign.sms.SMSConfiguration;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client shared by all messages sent to one SMS gateway.
+ *
+ * The underlying HttpClient keeps connections alive and reuses them, so only
+ * the first message pays for the TCP and TLS handshakes. HTTP/2 is negotiated
+ * for https gateways that support it. The number of concurrent requests (and
+ * thereby the number of open HTTP/1.1 connections) is limited explicitly.
+ */
+class GatewayHttpClient {
+    private final HttpClient client;
+    private final Semaphore permits;
+    private final Duration readTimeout;
+    private final long acquireTimeout;
+    private final boolean http2;
+
+    /**
+     * @param connectTimeout timeout in milliseconds for setting up a connection, 0 for no timeout
+     * @param readTimeout    timeout in milliseconds for receiving the response, 0 for no timeout
+     * @param maxConnections maximum number of concurrent requests to the gateway
+     * @param http2          whether HTTP/2 may be used for https gateways
+     * @param proxy          where to connect to instead of the gateway, or null to connect directly
+     */
+    GatewayHttpClient(int connectTimeout, int readTimeout, int maxConnections, boolean http2, ProxySelector proxy) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maximum number of gateway connections must be positive");
+        }
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (connectTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        if (proxy != null) {
+            builder.proxy(proxy);
+        }
+        this.client = builder.build();
+        this.permits = new Semaphore(maxConnections, true);
+        this.readTimeout = readTimeout > 0 ? Duration.ofMillis(readTimeout) : null;
+        this.acquireTimeout = connectTimeout > 0 ? connectTimeout : Long.MAX_VALUE;
+        this.http2 = http2;
+    }
+
+    static GatewayHttpClient fromConfiguration(SMSConfiguration conf) {
+        return fromConfiguration(conf, null);
+    }
+
+    static GatewayHttpClient fromConfiguration(SMSConfiguration conf, ProxySelector proxy) {
+        return new GatewayHttpClient(conf.getSMSSenderConnectTimeout(), conf.getSMSSenderTimeout(),
+                conf.getSMSSenderMaxConnections(), conf.isSMSSenderHttp2Enabled(), proxy);
+    }
+
+    /**
+     * Start building a request for the given URI with the read timeout set.
+     * HTTP/2 is only used over TLS: plain-text gateways are often simple
+     * servers that can't handle an h2c upgrade request.
+     */
+    HttpRequest.Builder newRequest(URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        if (readTimeout != null) {
+            builder.timeout(readTimeout);
+        }
+        if (!http2 || !"https".equalsIgnoreCase(uri.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        return builder;
+    }
+
+    /**
+     * Send a request, waiting for a free connection slot first.
+     * The response body is always consumed by the body handler, so that the
+     * connection can be returned to the pool.
+     *
+     * @throws MessageNotSentException when no connection could be set up, so
+     *         the request certainly didn't reach the gateway
+     */
+    <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new MessageNotSentException("Timeout waiting for a free connection to the SMS gateway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessageNotSentException("Interrupted while waiting for a connection to the SMS gateway");
+        }
+
+        try {
+            return client.send(request, handler);
+        } catch (IOException e) {
+            if (isConnectFailure(e)) {
+                throw new MessageNotSentException("Could not connect to the SMS gateway: " + e.getMessage(), e);
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending request to the SMS gateway");
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Whether the connection to the gateway couldn't be set up (refused or
+     * timed out), as opposed to failing after the request was sent.
+     */
+    static boolean isConnectFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof HttpConnectTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
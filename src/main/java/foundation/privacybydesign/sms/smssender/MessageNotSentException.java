@@ -0,0 +1,22 @@
+package foundation.privacybydesign.sms.smssender;
+
+import java.io.IOException;
+
+/**
+ * Sending a message failed before it reached the gateway, or the gateway
+ * explicitly rejected it, so it certainly wasn't sent and may be sent again
+ * (on another route). Any other IOException from a sender leaves it unknown
+ * whether the gateway accepted the message: a read timeout or an error
+ * status can come after the gateway has already sent the SMS.
+ */
+public class MessageNotSentException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MessageNotSentException(String message) {
+        super(message);
+    }
+
+    public MessageNotSentException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -3,42 +3,59 @@ package foundation.privacybydesign.sms.smssender;
 import foundation.privacybydesign.sms.SMSConfiguration;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
 
 public abstract class RESTSender extends Sender {
-    private byte[] getBytes(String phone, String message) {
+    static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    // The form fields are always the same, so they are encoded only once:
+    // "<phone param>=" and "&<message param>=".
+    private final byte[] phonePrefix;
+    private final byte[] messagePrefix;
+
+    RESTSender() {
         SMSConfiguration conf = SMSConfiguration.getInstance();
+        phonePrefix = concat(FormEncoding.encode(conf.getSMSSenderParamPhone()), new byte[] { '=' });
+        messagePrefix = concat(new byte[] { '&' }, FormEncoding.encode(conf.getSMSSenderParamMessage()), new byte[] { '=' });
+    }
 
-        // https://stackoverflow.com/a/35013372/559350
-        Map<String, String> arguments = new HashMap<>();
-        arguments.put(conf.getSMSSenderParamPhone(), phone);
-        arguments.put(conf.getSMSSenderParamMessage(), message);
-        StringBuilder builder = new StringBuilder();
-        for (Map.Entry<String, String> entry : arguments.entrySet()) {
-            try {
-                if (builder.length() != 0) {
-                    builder.append("&");
-                }
-                builder.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
-                builder.append("=");
-                builder.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                // unreachable
-                throw new RuntimeException("Invalid encoding?");
-            }
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
         }
-        return builder.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
     }
 
-    abstract void sendBytes(byte[] out) throws IOException;
+    byte[] getBytes(String phone, String message) {
+        byte[] out = new byte[phonePrefix.length + FormEncoding.encodedLength(phone)
+                + messagePrefix.length + FormEncoding.encodedLength(message)];
+        System.arraycopy(phonePrefix, 0, out, 0, phonePrefix.length);
+        int offset = FormEncoding.encode(phone, out, phonePrefix.length);
+        System.arraycopy(messagePrefix, 0, out, offset, messagePrefix.length);
+        FormEncoding.encode(message, out, offset + messagePrefix.length);
+        return out;
+    }
+
+    /**
+     * Post the form-encoded message to the gateway. The reference is sent
+     * in the Idempotency-Key header when not null.
+     */
+    abstract void sendBytes(byte[] out, String reference) throws IOException;
 
     @Override
     protected void sendMessage(String phone, String message) throws IOException {
+        sendMessage(phone, message, null);
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
         byte[] out = this.getBytes(phone, message);
-        this.sendBytes(out);
+        this.sendBytes(out, reference);
     }
 }
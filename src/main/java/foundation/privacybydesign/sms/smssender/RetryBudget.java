@@ -0,0 +1,40 @@
+package foundation.privacybydesign.sms.smssender;
+
+/**
+ * Limits the number of retries relative to the number of messages, so that
+ * retries can't multiply the load on the SMS gateways during an outage.
+ *
+ * Every message deposits a fraction (the ratio) of a token, up to a maximum.
+ * Every retry or hedged attempt withdraws a whole token, and is only allowed
+ * when one is available. In steady state at most ratio * messages retries
+ * are done.
+ */
+class RetryBudget {
+    static final double DEFAULT_MAX_TOKENS = 10;
+
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    RetryBudget(double ratio, double maxTokens) {
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    synchronized void deposit() {
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    synchronized boolean tryWithdraw() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    synchronized double getTokens() {
+        return tokens;
+    }
+}
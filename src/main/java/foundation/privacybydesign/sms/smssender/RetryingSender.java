@@ -0,0 +1,201 @@
+package foundation.privacybydesign.sms.smssender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retry failed messages, within a global retry budget.
+ *
+ * Attempts that certainly didn't reach the gateway (MessageNotSentException)
+ * are retried up to maxAttempts times with jittered exponential backoff, as
+ * long as the RetryBudget allows it. Other errors, like a read timeout, are
+ * passed on without retrying: the gateway may have sent the SMS already, and
+ * not all gateways drop a duplicate with the same reference.
+ *
+ * When hedging is enabled and messages are routed over several backends, an
+ * attempt that hasn't finished within the recent p95 latency of its backend
+ * gets a second, parallel attempt on another backend. The first attempt to
+ * succeed wins. The first attempt isn't cancelled, so both may reach the
+ * gateway: hedging only goes to a route in the same dedupe group (see
+ * RoutingSender.selectHedge), whose gateway drops the duplicate reference.
+ */
+public class RetryingSender extends Sender {
+    private static final Logger logger = LoggerFactory.getLogger(RetryingSender.class);
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    private final Sender sender;
+    private final int maxAttempts;
+    private final long backoff;
+    private final RetryBudget budget;
+    private final boolean hedging;
+    private final ExecutorService hedgeExecutor;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    /**
+     * @param sender      the sender to retry
+     * @param maxAttempts maximum number of attempts per message, including the first
+     * @param backoff     base backoff between attempts in milliseconds
+     * @param budget      the budget that retries and hedged attempts are withdrawn from
+     * @param hedging     whether to send hedged attempts; only has effect for a RoutingSender
+     */
+    RetryingSender(Sender sender, int maxAttempts, long backoff, RetryBudget budget, boolean hedging) {
+        this.sender = sender;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoff = backoff;
+        this.budget = budget;
+        if (hedging && !(sender instanceof RoutingSender && ((RoutingSender) sender).canHedge())) {
+            logger.warn("SMS hedging needs routes that share a dedupe_group, disabling it");
+            hedging = false;
+        }
+        this.hedging = hedging;
+        this.hedgeExecutor = this.hedging ? Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "sms-hedge");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message) throws IOException {
+        sendMessage(phone, message, newReference());
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
+        budget.deposit();
+
+        MessageNotSentException lastError = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                if (!budget.tryWithdraw()) {
+                    budgetExhausted.incrementAndGet();
+                    logger.warn("Retry budget exhausted, not retrying SMS");
+                    break;
+                }
+                retries.incrementAndGet();
+                sleep(backoff(attempt));
+            }
+            try {
+                if (hedging) {
+                    sendHedged(phone, message, reference);
+                } else {
+                    sender.sendMessage(phone, message, reference);
+                }
+                return;
+            } catch (MessageNotSentException e) {
+                logger.warn("Attempt {} to send SMS failed: {}", attempt, e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Full jitter: a random delay between 0 and backoff * 2^(attempt - 2).
+     */
+    long backoff(int attempt) {
+        long max = backoff << Math.min(attempt - 2, 10);
+        return ThreadLocalRandom.current().nextLong(max + 1);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private void sendHedged(String phone, String message, String reference) throws IOException {
+        RoutingSender routing = (RoutingSender) sender;
+        RoutingSender.Backend first = routing.select(Collections.emptySet());
+        if (first == null) {
+            throw new MessageNotSentException("No healthy SMS backend available");
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        start(first, phone, message, reference, result, running);
+
+        double delay = first.latencyPercentile(HEDGE_PERCENTILE);
+        try {
+            if (delay >= 0) {
+                try {
+                    result.get((long) Math.ceil(delay), TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    RoutingSender.Backend second = first.dedupeGroup != null && budget.tryWithdraw()
+                            ? routing.selectHedge(first) : null;
+                    if (second != null) {
+                        hedges.incrementAndGet();
+                        running.incrementAndGet();
+                        start(second, phone, message, reference, result, running);
+                    }
+                }
+            }
+            result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Sending SMS failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending SMS");
+        }
+    }
+
+    /**
+     * Start an attempt on the given backend. The result completes with the
+     * first success, or with the error of the last attempt when all failed.
+     */
+    private void start(RoutingSender.Backend backend, String phone, String message, String reference,
+                       CompletableFuture<Void> result, AtomicInteger running) {
+        hedgeExecutor.execute(() -> {
+            try {
+                if (!result.isDone()) {
+                    backend.sendMessage(phone, message, reference);
+                }
+                result.complete(null);
+            } catch (Exception e) {
+                logger.warn("Sending SMS via {} failed: {}", backend.name, e.getMessage());
+                if (running.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void logStatistics() {
+        logger.info("SMS retries: {} retries, {} hedged attempts, {} times budget exhausted, {} tokens left",
+                retries.get(), hedges.get(), budgetExhausted.get(), budget.getTokens());
+        sender.logStatistics();
+    }
+
+    @Override
+    public void close() {
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdown();
+        }
+        sender.close();
+    }
+}
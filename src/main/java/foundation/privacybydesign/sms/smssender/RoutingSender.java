@@ -0,0 +1,322 @@
+package foundation.privacybydesign.sms.smssender;
+
+import foundation.privacybydesign.sms.SenderRouteConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Send messages via the healthiest of several SMS backends.
+ *
+ * For every backend the latency (exponentially weighted moving average) and
+ * the error rate over the last WINDOW_SIZE messages are tracked. A backend
+ * whose error rate gets too high is taken out of rotation by a circuit
+ * breaker; after OPEN_DURATION a single trial message is let through to see
+ * whether it has recovered. Each message goes to the available backend with
+ * the best score, falling back to the next one when the message certainly
+ * wasn't sent (see MessageNotSentException). After other errors, like a read
+ * timeout, the gateway may have sent the SMS already, so the error is passed
+ * on instead of sending the same token through a second gateway.
+ */
+public class RoutingSender extends Sender {
+    private static final Logger logger = LoggerFactory.getLogger(RoutingSender.class);
+
+    static final int WINDOW_SIZE = 20;
+    static final int MIN_SAMPLES = 5;
+    static final double MAX_ERROR_RATE = 0.5;
+    static final long OPEN_DURATION = 30 * 1000; // ms
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final int LATENCY_SAMPLES = 100;
+
+    private final List<Backend> backends;
+
+    RoutingSender(List<SenderRouteConfiguration> routes) {
+        if (routes == null || routes.isEmpty()) {
+            throw new RuntimeException("No SMS sender routes configured");
+        }
+        List<Backend> list = new ArrayList<>(routes.size());
+        for (SenderRouteConfiguration route : routes) {
+            list.add(new Backend(route.getName(), Sender.create(route), route.getDedupeGroup()));
+        }
+        this.backends = Collections.unmodifiableList(list);
+    }
+
+    RoutingSender(List<String> names, List<Sender> senders) {
+        this(names, senders, Collections.nCopies(senders.size(), null));
+    }
+
+    RoutingSender(List<String> names, List<Sender> senders, List<String> dedupeGroups) {
+        List<Backend> list = new ArrayList<>(senders.size());
+        for (int i = 0; i < senders.size(); i++) {
+            list.add(new Backend(names.get(i), senders.get(i), dedupeGroups.get(i)));
+        }
+        this.backends = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message) throws IOException {
+        sendMessage(phone, message, newReference());
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
+        Set<Backend> tried = new HashSet<>();
+        IOException lastError = null;
+        Backend backend;
+        while ((backend = select(tried)) != null) {
+            tried.add(backend);
+            try {
+                backend.sendMessage(phone, message, reference);
+                return;
+            } catch (MessageNotSentException e) {
+                logger.warn("Sending SMS via {} failed: {}", backend.name, e.getMessage());
+                lastError = e;
+            }
+        }
+        if (lastError == null) {
+            throw new MessageNotSentException("No healthy SMS backend available");
+        }
+        throw lastError;
+    }
+
+    /**
+     * Select the backend with the best score that hasn't been tried yet, or
+     * null when none is available.
+     */
+    Backend select(Set<Backend> exclude) {
+        long now = System.currentTimeMillis();
+        Backend best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Backend backend : backends) {
+            if (exclude.contains(backend) || !backend.isAvailable(now)) {
+                continue;
+            }
+            double score = backend.score();
+            // Backends earlier in the list win ties.
+            if (score < bestScore) {
+                best = backend;
+                bestScore = score;
+            }
+        }
+        if (best != null && !best.tryAcquire(now)) {
+            // Another message just claimed the trial slot of this half-open
+            // backend; try the others.
+            Set<Backend> moreExcluded = new HashSet<>(exclude);
+            moreExcluded.add(best);
+            return select(moreExcluded);
+        }
+        return best;
+    }
+
+    /**
+     * Select a backend for a hedged attempt of a message that is still being
+     * sent via first, or null when there is none. Only a backend in the same
+     * dedupe group qualifies: it delivers to the same gateway, which drops
+     * whichever of the two attempts arrives last. A second gateway couldn't
+     * know about the first attempt, so the user would get two messages.
+     */
+    Backend selectHedge(Backend first) {
+        if (first.dedupeGroup == null) {
+            return null;
+        }
+        Set<Backend> exclude = new HashSet<>();
+        for (Backend backend : backends) {
+            if (backend == first || !first.dedupeGroup.equals(backend.dedupeGroup)) {
+                exclude.add(backend);
+            }
+        }
+        return select(exclude);
+    }
+
+    /**
+     * Whether any two backends share a dedupe group, so that messages can be
+     * hedged at all.
+     */
+    boolean canHedge() {
+        Set<String> groups = new HashSet<>();
+        for (Backend backend : backends) {
+            if (backend.dedupeGroup != null && !groups.add(backend.dedupeGroup)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    List<Backend> getBackends() {
+        return backends;
+    }
+
+    @Override
+    public void logStatistics() {
+        for (Backend backend : backends) {
+            backend.logStatistics();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Backend backend : backends) {
+            backend.sender.close();
+        }
+    }
+
+    /**
+     * A backend with its health statistics and circuit breaker.
+     */
+    static class Backend {
+        private enum State { CLOSED, OPEN, HALF_OPEN }
+
+        final String name;
+        final Sender sender;
+        final String dedupeGroup;
+
+        // Ring buffer with the outcome of the last WINDOW_SIZE messages.
+        private final boolean[] failures = new boolean[WINDOW_SIZE];
+        private int samples = 0;
+        private int position = 0;
+        private int failureCount = 0;
+        private double latency = 0; // ms, moving average
+        // Ring buffer with the latency of the last LATENCY_SAMPLES messages.
+        private final double[] latencies = new double[LATENCY_SAMPLES];
+        private int latencyPosition = 0;
+        private int latencyCount = 0;
+        private State state = State.CLOSED;
+        private long openedAt = 0;
+        private boolean trialInProgress = false;
+
+        Backend(String name, Sender sender, String dedupeGroup) {
+            this.name = name;
+            this.sender = sender;
+            this.dedupeGroup = dedupeGroup;
+        }
+
+        void sendMessage(String phone, String message, String reference) throws IOException {
+            long start = System.nanoTime();
+            try {
+                sender.sendMessage(phone, message, reference);
+            } catch (IOException | RuntimeException e) {
+                record(false, (System.nanoTime() - start) / 1e6);
+                throw e;
+            }
+            record(true, (System.nanoTime() - start) / 1e6);
+        }
+
+        synchronized boolean isAvailable(long now) {
+            if (state == State.OPEN && now - openedAt >= OPEN_DURATION) {
+                state = State.HALF_OPEN;
+                trialInProgress = false;
+            }
+            return state == State.CLOSED || (state == State.HALF_OPEN && !trialInProgress);
+        }
+
+        /**
+         * Claim the backend for sending a message. In the half-open state
+         * only one trial message is allowed at a time.
+         */
+        synchronized boolean tryAcquire(long now) {
+            if (!isAvailable(now)) {
+                return false;
+            }
+            if (state == State.HALF_OPEN) {
+                trialInProgress = true;
+            }
+            return true;
+        }
+
+        synchronized double errorRate() {
+            return samples == 0 ? 0 : failureCount / (double) samples;
+        }
+
+        synchronized double latency() {
+            return latency;
+        }
+
+        /**
+         * The given percentile (between 0 and 1) of the latency of the last
+         * messages in milliseconds, or -1 when nothing has been sent yet.
+         */
+        synchronized double latencyPercentile(double percentile) {
+            if (latencyCount == 0) {
+                return -1;
+            }
+            double[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(latencyCount - 1, Math.floor(percentile * latencyCount))];
+        }
+
+        /**
+         * Lower is better: the average latency, penalized by the error rate.
+         */
+        synchronized double score() {
+            return (latency + 1) * (1 + 4 * errorRate());
+        }
+
+        synchronized void record(boolean success, double millis) {
+            latency = samples == 0 && latency == 0 ? millis : latency + LATENCY_WEIGHT * (millis - latency);
+            latencies[latencyPosition] = millis;
+            latencyPosition = (latencyPosition + 1) % LATENCY_SAMPLES;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+
+            if (failures[position]) {
+                failureCount--;
+            }
+            failures[position] = !success;
+            if (!success) {
+                failureCount++;
+            }
+            position = (position + 1) % WINDOW_SIZE;
+            samples = Math.min(samples + 1, WINDOW_SIZE);
+
+            switch (state) {
+                case HALF_OPEN:
+                    trialInProgress = false;
+                    if (success) {
+                        logger.info("SMS backend {} recovered, closing circuit breaker", name);
+                        state = State.CLOSED;
+                        resetWindow();
+                    } else {
+                        open();
+                    }
+                    break;
+                case CLOSED:
+                    if (samples >= MIN_SAMPLES && errorRate() >= MAX_ERROR_RATE) {
+                        logger.warn("SMS backend {} has error rate {}, opening circuit breaker", name, errorRate());
+                        open();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        synchronized boolean isOpen() {
+            return state == State.OPEN;
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void resetWindow() {
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                failures[i] = false;
+            }
+            samples = 0;
+            position = 0;
+            failureCount = 0;
+        }
+
+        synchronized void logStatistics() {
+            logger.info(String.format("SMS backend %s: state %s, latency %.1fms, error rate %.2f",
+                    name, state, latency, errorRate()));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package foundation.privacybydesign.sms.smssender;
+
+import foundation.privacybydesign.sms.SMSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send SMS messages in the background, so that request threads don't have to
+ * wait for the SMS gateway.
+ *
+ * Messages are put in a bounded queue which is drained by a fixed pool of
+ * worker threads. When the queue is full, the configured overflow policy
+ * decides what happens:
+ *  - "reject": the message is not sent and a DispatchRejectedException is thrown
+ *  - "caller-runs": the message is sent synchronously on the calling thread
+ */
+public class SMSDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(SMSDispatcher.class);
+    private static volatile SMSDispatcher instance;
+
+    static final String OVERFLOW_REJECT = "reject";
+    static final String OVERFLOW_CALLER_RUNS = "caller-runs";
+
+    private final Sender sender;
+    private final ThreadPoolExecutor executor;
+    private final boolean callerRunsOnOverflow;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dequeued = new AtomicLong();
+    private final AtomicLong totalQueueTimeNanos = new AtomicLong();
+    private final AtomicLong maxQueueTimeNanos = new AtomicLong();
+
+    SMSDispatcher(Sender sender, int workers, int queueSize, String overflowPolicy) {
+        if (workers < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("SMS dispatch workers and queue size must be positive");
+        }
+        switch (overflowPolicy) {
+            case OVERFLOW_REJECT:
+                callerRunsOnOverflow = false;
+                break;
+            case OVERFLOW_CALLER_RUNS:
+                callerRunsOnOverflow = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown SMS dispatch overflow policy: " + overflowPolicy);
+        }
+
+        this.sender = sender;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static SMSDispatcher getInstance() {
+        if (instance == null) {
+            synchronized (SMSDispatcher.class) {
+                if (instance == null) {
+                    SMSConfiguration conf = SMSConfiguration.getInstance();
+                    instance = new SMSDispatcher(Sender.create(conf.getSMSSenderBackend()),
+                            conf.getSMSDispatchWorkers(),
+                            conf.getSMSDispatchQueueSize(),
+                            conf.getSMSDispatchOverflowPolicy());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public void dispatch(String language, String phone, String token)
+            throws DispatchRejectedException, IOException {
+        dispatch(language, phone, token, null);
+    }
+
+    /**
+     * Queue a message to be sent by one of the workers. When a worker fails
+     * to send it, onFailure is run on the worker thread (when not null).
+     *
+     * @throws DispatchRejectedException when the queue is full and the
+     *         overflow policy is "reject"
+     * @throws IOException when the queue is full, the overflow policy is
+     *         "caller-runs" and sending the SMS failed; onFailure is not run
+     *         then, the caller handles the error
+     */
+    public void dispatch(String language, String phone, String token, Runnable onFailure)
+            throws DispatchRejectedException, IOException {
+        final long enqueued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                recordQueueTime(System.nanoTime() - enqueued);
+                try {
+                    sender.send(language, phone, token);
+                    sent.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Failed to send SMS: " + e.getMessage());
+                    if (onFailure != null) {
+                        try {
+                            onFailure.run();
+                        } catch (Exception e2) {
+                            logger.error("Failed to handle failed SMS: " + e2.getMessage());
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            if (!callerRunsOnOverflow || executor.isShutdown()) {
+                throw new DispatchRejectedException();
+            }
+            try {
+                sender.send(language, phone, token);
+                sent.incrementAndGet();
+            } catch (IOException e2) {
+                failed.incrementAndGet();
+                throw e2;
+            }
+        }
+    }
+
+    private void recordQueueTime(long nanos) {
+        dequeued.incrementAndGet();
+        totalQueueTimeNanos.addAndGet(nanos);
+        maxQueueTimeNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Number of messages waiting in the queue.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Number of messages that didn't fit in the queue (including those that
+     * were sent on the caller thread).
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public double getAverageQueueTimeMillis() {
+        long count = dequeued.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalQueueTimeNanos.get() / (double) count / 1e6;
+    }
+
+    public double getMaxQueueTimeMillis() {
+        return maxQueueTimeNanos.get() / 1e6;
+    }
+
+    public void logStatistics() {
+        logger.info(String.format("SMS dispatch: queue depth %d, sent %d, failed %d, rejected %d, " +
+                        "time in queue avg %.1fms max %.1fms",
+                getQueueDepth(), getSentCount(), getFailedCount(), getRejectedCount(),
+                getAverageQueueTimeMillis(), getMaxQueueTimeMillis()));
+        sender.logStatistics();
+    }
+
+    /**
+     * Stop accepting new messages and give the workers some time to drain the
+     * queue, then close the sender.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                logger.warn("SMS dispatch queue not drained on shutdown, dropping {} messages",
+                        executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        sender.close();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sms-dispatch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package foundation.privacybydesign.sms.smssender;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SMS template from the configuration, parsed once when the configuration
+ * is loaded.
+ *
+ * The template is a format string (see java.util.Formatter) with two
+ * arguments: the token and the verification link suffix (phone:token). Only
+ * %s, %1$s, %2$s, %% and %n are parsed here, which covers the templates we
+ * use. Templates with other conversions are rendered with String.format,
+ * like before.
+ */
+public class SMSTemplate {
+    private static final int ARG_TOKEN = 0;
+    private static final int ARG_LINK = 1;
+
+    private final String template;
+    // literals[i] comes before args[i]; the last literal comes after the last arg.
+    private final String[] literals;
+    private final int[] args;
+    private final int literalLength;
+
+    private SMSTemplate(String template, String[] literals, int[] args) {
+        this.template = template;
+        this.literals = literals;
+        this.args = args;
+        int length = 0;
+        if (literals != null) {
+            for (String literal : literals) {
+                length += literal.length();
+            }
+        }
+        this.literalLength = length;
+    }
+
+    public static SMSTemplate compile(String template) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> args = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int nextArg = 0;
+
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i + 1 >= template.length()) {
+                return uncompiled(template);
+            }
+            char conversion = template.charAt(++i);
+            int arg;
+            if (conversion == '%') {
+                literal.append('%');
+                continue;
+            } else if (conversion == 'n') {
+                literal.append(System.lineSeparator());
+                continue;
+            } else if (conversion == 's') {
+                arg = nextArg++;
+            } else if ((conversion == '1' || conversion == '2') && template.startsWith("$s", i + 1)) {
+                arg = conversion - '1';
+                i += 2;
+            } else {
+                return uncompiled(template);
+            }
+            if (arg > ARG_LINK) {
+                return uncompiled(template);
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            args.add(arg);
+        }
+        literals.add(literal.toString());
+
+        int[] argArray = new int[args.size()];
+        for (int i = 0; i < argArray.length; i++) {
+            argArray[i] = args.get(i);
+        }
+        return new SMSTemplate(template, literals.toArray(new String[0]), argArray);
+    }
+
+    private static SMSTemplate uncompiled(String template) {
+        return new SMSTemplate(template, null, null);
+    }
+
+    public String render(String token, String phone) {
+        if (literals == null) {
+            return String.format(template, token, phone + ":" + token);
+        }
+
+        int length = literalLength;
+        for (int arg : args) {
+            length += arg == ARG_TOKEN ? token.length() : phone.length() + 1 + token.length();
+        }
+
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < args.length; i++) {
+            builder.append(literals[i]);
+            if (args[i] == ARG_LINK) {
+                builder.append(phone).append(':');
+            }
+            builder.append(token);
+        }
+        builder.append(literals[args.length]);
+        return builder.toString();
+    }
+}
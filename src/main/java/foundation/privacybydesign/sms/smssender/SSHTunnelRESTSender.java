@@ -1,93 +1,198 @@
 package foundation.privacybydesign.sms.smssender;
 
-import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import foundation.privacybydesign.sms.SMSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import jakarta.ws.rs.InternalServerErrorException;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Send a SMS token to a phone using REST, over a SSH tunnel.
+ *
+ * The SSH session is set up once and kept alive, with a local port forward
+ * (like ssh -L) to the REST gateway. Messages are sent with a keep-alive HTTP
+ * client over this forward, so after the first message there is no SSH or TCP
+ * handshake on the send path anymore. When the session dies it is set up again
+ * on the next message, with exponential backoff between failed attempts.
+ *
+ * The client connects to the forward as if it were an HTTP proxy, so requests
+ * still carry the gateway's own URI (in absolute form) and Host header, as if
+ * they were sent to the gateway directly.
  */
 public class SSHTunnelRESTSender extends RESTSender {
+    private static final Logger logger = LoggerFactory.getLogger(SSHTunnelRESTSender.class);
+
+    private static final long MIN_RECONNECT_BACKOFF = 500; // ms
+    private static final long MAX_RECONNECT_BACKOFF = 60 * 1000; // ms
+    private static final int SERVER_ALIVE_INTERVAL = 15 * 1000; // ms
+    private static final int SERVER_ALIVE_COUNT_MAX = 3;
+
+    private final ProxySelector forward = new ProxySelector() {
+        @Override
+        public List<Proxy> select(URI uri) {
+            return List.of(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", localPort)));
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+        }
+    };
+    private final GatewayHttpClient client =
+            GatewayHttpClient.fromConfiguration(SMSConfiguration.getInstance(), forward);
+
+    private volatile Session session;
+    private volatile URI tunnelURI;
+    private volatile int localPort;
+    private long reconnectBackoff = MIN_RECONNECT_BACKOFF;
+    private long nextReconnectAttempt = 0;
 
     @Override
-    public void sendBytes(byte[] out) throws IOException {
-        SMSConfiguration conf = SMSConfiguration.getInstance();
+    public void sendBytes(byte[] out, String reference) throws IOException {
+        URI uri = tunnel();
 
+        HttpRequest.Builder builder = client.newRequest(uri)
+                .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(out));
+        if (reference != null) {
+            builder.header(IDEMPOTENCY_KEY_HEADER, reference);
+        }
+        HttpRequest request = builder.build();
+        HttpResponse<Void> response;
         try {
-            // Set up the HTTP connection
-            JSch jsch = new JSch();
-            String knownHosts = conf.getSMSSenderHost() + " ssh-rsa " + conf.getSMSSenderHostRsaKey();
-            jsch.setKnownHosts(new ByteArrayInputStream(knownHosts.getBytes()));
-            // Unfortunately, JSch doesn't support ed25519 keys.
-            // https://sourceforge.net/p/jsch/feature-requests/7/
-
-            URI sshkey = SMSConfiguration.getConfigurationDirectory().resolve(conf.getSMSSenderKeyPath());
-            if (sshkey == null) {
-                throw new IOException("SSH private key not found");
-            }
-            jsch.addIdentity(sshkey.getPath(), conf.getSMSSenderKeyPassphrase());
-            Session session = jsch.getSession(conf.getSMSSenderUser(), conf.getSMSSenderHost());
-            session.setTimeout(conf.getSMSSenderTimeout());
-            session.connect();
-
-            PipedInputStream chanIs = new PipedInputStream();
-            PipedOutputStream os = new PipedOutputStream(chanIs);
-            PipedOutputStream chanOs = new PipedOutputStream();
-            PipedInputStream is = new PipedInputStream(chanOs);
-
-            // Open a socket on the remote host, like ssh -L
-            URL url = new URL(conf.getSMSSenderAddress());
-            Channel chan = session.getStreamForwarder(url.getHost(), url.getPort());
-            chan.setInputStream(chanIs);
-            chan.setOutputStream(chanOs);
-            chan.connect(conf.getSMSSenderTimeout());
-
-            // Send the HTTP request
-            // TODO use a real HTTP client
-            os.write(("POST " + url.getPath() + " HTTP/1.1\r\n").getBytes());
-            os.write(("Content-Type: application/x-www-form-urlencoded; charset=UTF-8\r\n").getBytes());
-            os.write(("Content-Length: " + out.length + "\r\n").getBytes());
-            os.write(("Host: " + url.getHost() + "\r\n").getBytes());
-            os.write("\r\n".getBytes());
-            os.write(out);
-
-            // Read (part of) the HTTP response
-            BufferedReader bis = new BufferedReader(new InputStreamReader(is));
-            String line = bis.readLine();
-
-            os.close();
-            is.close();
-            chan.disconnect();
-            session.disconnect();
+            response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            checkSession();
+            throw e;
+        }
+        if (response.statusCode() >= 400 && response.statusCode() < 500) {
+            throw new MessageNotSentException("HTTP error: " + response.statusCode());
+        } else if (response.statusCode() != 200) {
+            throw new IOException("HTTP error: " + response.statusCode());
+        }
+        // TODO: a 200 response is sent even if the phone doesn't have a
+        // SIM card in it.
+    }
+
+    /**
+     * Return the URI of the REST gateway, setting up the SSH session and the
+     * local end of the tunnel first when needed.
+     */
+    private URI tunnel() throws IOException {
+        URI uri = tunnelURI;
+        Session s = session;
+        if (uri != null && s != null && s.isConnected()) {
+            return uri;
+        }
 
-            if (line == null) {
-                throw new IOException("EOF has been reached before HTTP response could be read");
+        synchronized (this) {
+            if (tunnelURI != null && session != null && session.isConnected()) {
+                return tunnelURI;
             }
-            String[] parts = line.split(" +", 3);
-            if (parts.length < 3) {
-                throw new IOException("HTTP error: invalid response");
+            if (session != null) {
+                logger.warn("SSH tunnel to {} lost", session.getHost());
+                disconnect();
             }
-            if (!(parts[0].equals("HTTP/1.1") || parts[0].equals("HTTP/1.0"))) {
-                throw new IOException("HTTP error: HTTP version");
+            long now = System.currentTimeMillis();
+            if (now < nextReconnectAttempt) {
+                throw new MessageNotSentException("SSH tunnel is down, not reconnecting for another "
+                        + (nextReconnectAttempt - now) + "ms");
             }
-            if (!parts[1].equals("200")) {
-                throw new IOException("HTTP error: " + parts[1]);
+            try {
+                tunnelURI = connect();
+                reconnectBackoff = MIN_RECONNECT_BACKOFF;
+                return tunnelURI;
+            } catch (JSchException e) {
+                disconnect();
+                // Add some jitter, so that multiple instances don't retry in lockstep.
+                long backoff = reconnectBackoff / 2 + ThreadLocalRandom.current().nextLong(reconnectBackoff / 2 + 1);
+                nextReconnectAttempt = now + backoff;
+                reconnectBackoff = Math.min(reconnectBackoff * 2, MAX_RECONNECT_BACKOFF);
+                throw new MessageNotSentException("JSch error: " + e.getMessage());
             }
-            // TODO: a 200 response is sent even if the phone doesn't have a
-            // SIM card in it.
+        }
+    }
+
+    private URI connect() throws JSchException, IOException {
+        SMSConfiguration conf = SMSConfiguration.getInstance();
 
+        JSch jsch = new JSch();
+        String knownHosts = conf.getSMSSenderHost() + " ssh-rsa " + conf.getSMSSenderHostRsaKey();
+        jsch.setKnownHosts(new ByteArrayInputStream(knownHosts.getBytes()));
+        // Unfortunately, JSch doesn't support ed25519 keys.
+        // https://sourceforge.net/p/jsch/feature-requests/7/
+
+        URI sshkey = SMSConfiguration.getConfigurationDirectory().resolve(conf.getSMSSenderKeyPath());
+        if (sshkey == null) {
+            throw new IOException("SSH private key not found");
+        }
+        jsch.addIdentity(sshkey.getPath(), conf.getSMSSenderKeyPassphrase());
+
+        URL url;
+        try {
+            url = new URL(conf.getSMSSenderAddress());
         } catch (MalformedURLException e) {
             throw new InternalServerErrorException("cannot parse configured URL");
-        } catch (JSchException e) {
-            throw new IOException("JSch error: " + e.getMessage());
+        }
+        int remotePort = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+        session = jsch.getSession(conf.getSMSSenderUser(), conf.getSMSSenderHost());
+        session.setTimeout(conf.getSMSSenderTimeout());
+        session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
+        session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
+        session.setDaemonThread(true);
+        session.connect(conf.getSMSSenderTimeout());
+
+        // Open a port on the loopback interface that is forwarded to the
+        // gateway on the remote host, like ssh -L
+        localPort = session.setPortForwardingL("127.0.0.1", 0, url.getHost(), remotePort);
+        logger.info("SSH tunnel to {} set up on local port {}", conf.getSMSSenderHost(), localPort);
+
+        // The gateway is always spoken to in plain HTTP, the tunnel encrypts.
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        try {
+            return new URI("http", null, url.getHost(), url.getPort(), path, url.getQuery(), null);
+        } catch (URISyntaxException e) {
+            throw new InternalServerErrorException("cannot parse configured URL");
+        }
+    }
+
+    /**
+     * Health check after a failed request: when the session turns out to be
+     * dead, drop it so the next message sets up a new one.
+     */
+    private synchronized void checkSession() {
+        if (session != null && !session.isConnected()) {
+            logger.warn("SSH tunnel to {} lost", session.getHost());
+            disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+
+    private synchronized void disconnect() {
+        tunnelURI = null;
+        if (session != null) {
+            session.disconnect();
+            session = null;
         }
     }
 }
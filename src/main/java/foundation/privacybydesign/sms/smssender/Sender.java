@@ -1,30 +1,107 @@
 package foundation.privacybydesign.sms.smssender;
 
+import foundation.privacybydesign.sms.CMGatewayConfiguration;
 import foundation.privacybydesign.sms.SMSConfiguration;
+import foundation.privacybydesign.sms.SenderRouteConfiguration;
 
 import java.io.IOException;
-import java.util.Formatter;
+import java.util.UUID;
 
 /**
  * Send a SMS message.
  * Subclasses can implement how the message is actually delivered.
  */
 public abstract class Sender {
-    private String getMessage(String language, String phone, String token) {
+    /**
+     * Create the sender for the given backend name, as configured in
+     * sms_sender_backend.
+     */
+    public static Sender create(String backend) {
         SMSConfiguration conf = SMSConfiguration.getInstance();
+        Sender sender;
+        if (backend.equals("routing")) {
+            sender = new RoutingSender(conf.getSMSSenderRoutes());
+        } else {
+            sender = create(backend, conf.getCMGatewayConfiguration());
+        }
+        if (conf.getSMSSenderMaxAttempts() > 1 || conf.isSMSSenderHedgingEnabled()) {
+            sender = new RetryingSender(sender, conf.getSMSSenderMaxAttempts(), conf.getSMSSenderRetryBackoff(),
+                    new RetryBudget(conf.getSMSSenderRetryBudgetRatio(), RetryBudget.DEFAULT_MAX_TOKENS),
+                    conf.isSMSSenderHedgingEnabled());
+        }
+        return sender;
+    }
 
-        Formatter formatter = new Formatter();
-        String format = formatter.format(conf.getSMSTemplate(language),
-                token, phone + ":" + token)
-                .toString();
-        formatter.close();
-        return format;
+    /**
+     * Create the sender for one of the routes of the routing sender.
+     */
+    static Sender create(SenderRouteConfiguration route) {
+        CMGatewayConfiguration cm = route.getCMGatewayConfiguration();
+        if (cm == null) {
+            cm = SMSConfiguration.getInstance().getCMGatewayConfiguration();
+        }
+        return create(route.getBackend(), cm);
+    }
+
+    private static Sender create(String backend, CMGatewayConfiguration cm) {
+        switch (backend) {
+            case "rest":
+                return new SimpleRESTSender();
+            case "ssh-rest":
+                return new SSHTunnelRESTSender();
+            case "cm":
+                return new CMGatewaySender(cm);
+            case "cm-bulk":
+                return new CMBulkGatewaySender(cm);
+            case "sink":
+                return new SinkSender();
+            default:
+                throw new RuntimeException("Unknown SMS sender backend");
+        }
+    }
+
+    private String getMessage(String language, String phone, String token) {
+        SMSTemplate template = SMSConfiguration.getInstance().getCompiledSMSTemplate(language);
+        if (template == null) {
+            throw new IllegalArgumentException("No SMS template for language " + language);
+        }
+        return template.render(token, phone);
     }
 
     abstract protected void sendMessage(String phone, String message) throws IOException;
 
+    /**
+     * Send a message with an idempotency reference. The reference is the same
+     * for all attempts to send the same message, so gateways that support it
+     * can drop duplicates. By default the reference is ignored.
+     */
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
+        sendMessage(phone, message);
+    }
+
+    /**
+     * A random reference of 32 hex digits, which fits in CM's reference
+     * field.
+     */
+    static String newReference() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
     public void send(String language, String phone, String token) throws IOException {
         String message = getMessage(language, phone, token);
-        sendMessage(phone, message);
+        sendMessage(phone, message, newReference());
+    }
+
+    /**
+     * Log statistics about this sender, if it keeps any.
+     */
+    public void logStatistics() {
+    }
+
+    /**
+     * Stop the threads and close the connections of this sender, if it has
+     * any. Messages that were already handed to the sender are sent first.
+     */
+    public void close() {
     }
 }
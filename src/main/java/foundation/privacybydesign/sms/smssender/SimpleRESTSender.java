@@ -5,8 +5,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 
 /**
  * Simple REST implementation of an SMS sender.
@@ -16,35 +18,22 @@ import java.net.*;
 public class SimpleRESTSender extends RESTSender {
     private static final Logger logger = LoggerFactory.getLogger(SimpleRESTSender.class);
 
+    private final GatewayHttpClient client = GatewayHttpClient.fromConfiguration(SMSConfiguration.getInstance());
+
     @Override
-    public void sendBytes(byte[] out) throws IOException {
+    public void sendBytes(byte[] out, String reference) throws IOException {
         SMSConfiguration conf = SMSConfiguration.getInstance();
         String senderAddress = conf.getSMSSenderAddress();
-        OutputStream os = null;
+        HttpRequest request;
         try {
-            URL url = new URL(senderAddress);
-            URLConnection con = url.openConnection();
-
-            HttpURLConnection http = (HttpURLConnection) con;
-            try {
-                http.setRequestMethod("POST");
-            } catch (ProtocolException e) {
-                // unreachable
-                throw new RuntimeException("cannot set POST as request method?");
-            }
-            http.setConnectTimeout(conf.getSMSSenderTimeout());
-            http.setReadTimeout(conf.getSMSSenderTimeout());
-            http.setDoOutput(true);
-            http.setFixedLengthStreamingMode(out.length);
-            http.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-            http.connect();
-            os = http.getOutputStream();
-            os.write(out); // unbuffered, so no need to flush
-            int code = http.getResponseCode();
-            if (code != 200) {
-                throw new IOException("Expected HTTP REST status code 200, but got " + http.getResponseMessage());
+            HttpRequest.Builder builder = client.newRequest(new URI(senderAddress))
+                    .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(out));
+            if (reference != null) {
+                builder.header(IDEMPOTENCY_KEY_HEADER, reference);
             }
-        } catch (MalformedURLException e) {
+            request = builder.build();
+        } catch (URISyntaxException | IllegalArgumentException e) {
             // Configuration error.
             if (senderAddress.length() == 0) {
                 logger.error("Empty REST URL for SMS API");
@@ -53,17 +42,16 @@ public class SimpleRESTSender extends RESTSender {
             }
             // IOException will be shown to the user as "failed to send SMS"
             // which is mostly true.
-            throw new IOException();
-        } finally {
-            if (os != null) {
-                // The connection was opened.
-                try {
-                    // Try to close it.
-                    os.close();
-                } catch (IOException e) {
-                    // We did our best, but if it fails, just give up...
-                }
-            }
+            throw new MessageNotSentException("Invalid REST URL for SMS API");
+        }
+
+        // Discard (but read) the response body, so the connection can be reused.
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() >= 400 && response.statusCode() < 500) {
+            throw new MessageNotSentException("REST gateway rejected the message with status code "
+                    + response.statusCode());
+        } else if (response.statusCode() != 200) {
+            throw new IOException("Expected HTTP REST status code 200, but got " + response.statusCode());
         }
     }
 }
@@ -0,0 +1,174 @@
+package foundation.privacybydesign.sms.smssender;
+
+import foundation.privacybydesign.sms.SinkConfiguration;
+import foundation.privacybydesign.sms.SMSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Doesn't send messages at all, for load testing without gateway costs.
+ *
+ * Every message takes the configured latency and fails with the configured
+ * error rate. Messages that "succeed" are counted and, when a path is
+ * configured, written to a memory-mapped log file: one line per message with
+ * the time, phone number, reference and message separated by tabs, and
+ * backslashes, tabs and newlines in the message escaped. When the file is
+ * full it is renamed to path.1 (path.1 to path.2 and so on) and a new one is
+ * started. The current file is zero-padded up to the file size until it is
+ * rotated, so readers should stop at the first NUL byte.
+ */
+public class SinkSender extends Sender {
+    private static final Logger logger = LoggerFactory.getLogger(SinkSender.class);
+
+    private final SinkConfiguration conf;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    public SinkSender() {
+        this(SMSConfiguration.getInstance().getSinkConfiguration());
+    }
+
+    public SinkSender(SinkConfiguration conf) {
+        this.conf = conf == null ? new SinkConfiguration() : conf;
+        if (this.conf.getPath().isEmpty()) {
+            path = null;
+        } else {
+            path = Paths.get(this.conf.getPath());
+            try {
+                synchronized (this) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open SMS sink file: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message) throws IOException {
+        sendMessage(phone, message, null);
+    }
+
+    @Override
+    protected void sendMessage(String phone, String message, String reference) throws IOException {
+        if (conf.getLatencyMillis() > 0) {
+            try {
+                Thread.sleep(conf.getLatencyMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending SMS to sink");
+            }
+        }
+        if (ThreadLocalRandom.current().nextDouble() < conf.getErrorRate()) {
+            failed.incrementAndGet();
+            if (conf.isErrorNotSent()) {
+                throw new MessageNotSentException("Simulated SMS gateway error");
+            }
+            throw new IOException("Simulated SMS gateway error, the message may have been sent");
+        }
+        if (path != null) {
+            write(format(phone, message, reference));
+        }
+        sent.incrementAndGet();
+    }
+
+    static byte[] format(String phone, String message, String reference) {
+        StringBuilder line = new StringBuilder(message.length() + 80);
+        line.append(Instant.now()).append('\t')
+                .append(phone).append('\t')
+                .append(reference == null ? "" : reference).append('\t');
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+        line.append('\n');
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private synchronized void write(byte[] line) throws IOException {
+        if (line.length > buffer.capacity()) {
+            throw new IOException("SMS message does not fit in the sink file");
+        }
+        if (line.length > buffer.remaining()) {
+            rotate();
+        }
+        buffer.put(line);
+    }
+
+    /**
+     * Close the current file (if any), shift the old files and map a new one.
+     */
+    private void rotate() throws IOException {
+        if (channel != null) {
+            buffer.force();
+            channel.truncate(buffer.position());
+            channel.close();
+            channel = null;
+            buffer = null;
+        }
+
+        if (Files.exists(path)) {
+            for (int i = conf.getFiles() - 1; i >= 1; i--) {
+                Path older = Paths.get(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (conf.getFiles() > 0) {
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, conf.getFileSize());
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public void logStatistics() {
+        logger.info("SMS sink: {} messages sent, {} failed", getSentCount(), getFailedCount());
+    }
+}
@@ -0,0 +1,186 @@
+package foundation.privacybydesign.sms.snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file with the state of the in-memory stores, written
+ * through a memory mapping so that appending doesn't need a system call.
+ *
+ * Every record is the new state of one entry: its length, the record itself
+ * and a CRC32 of it. When the process dies while writing a record, that
+ * record fails the check on replay and it and everything after it are
+ * ignored.
+ */
+public class SnapshotJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotJournal.class);
+
+    // Record types.
+    public static final byte TOKEN = 1;
+    public static final byte TOKEN_REMOVED = 2;
+    public static final byte CLAIM = 3;
+    public static final byte CLAIM_REMOVED = 4;
+    public static final byte IP_LIMIT = 5;
+    public static final byte PHONE_LIMIT = 6;
+
+    private static final int MAGIC = 0x534d5331; // "SMS1"
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_SIZE = 1 << 20;
+    // Type, two string lengths and two longs.
+    private static final int FIXED_RECORD_SIZE = 1 + 2 + 2 + 8 + 8;
+
+    /**
+     * Receives the records on replay. text is null when the record has none.
+     */
+    public interface Consumer {
+        void accept(byte type, String key, String text, long a, long b);
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position = HEADER_SIZE;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer record = ByteBuffer.allocate(256);
+
+    private SnapshotJournal(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+        buffer.putInt(0, MAGIC);
+    }
+
+    /**
+     * Create an empty journal, replacing the file if it exists.
+     */
+    public static SnapshotJournal create(Path path) throws IOException {
+        return new SnapshotJournal(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Pass the records in the file to the consumer, in the order they were
+     * written. Returns the number of records, 0 when there is no file.
+     */
+    public static int replay(Path path, Consumer consumer) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot file too large: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+
+            CRC32 crc = new CRC32();
+            int count = 0;
+            int position = HEADER_SIZE;
+            while (position + 4 <= size) {
+                int length = buffer.getInt(position);
+                if (length < FIXED_RECORD_SIZE || position + 8L + length > size) {
+                    break;
+                }
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + 4).limit(position + 4 + length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != buffer.getInt(position + 4 + length)) {
+                    LOG.warn("Snapshot file {} has a damaged record at {}, ignoring the rest", path, position);
+                    break;
+                }
+                byte type = record.get();
+                String key = readString(record);
+                String text = readString(record);
+                consumer.accept(type, key, text, record.getLong(), record.getLong());
+                position += 8 + length;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        short length = record.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public synchronized void append(byte type, String key, String text, long a, long b) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_RECORD_SIZE + keyBytes.length + (textBytes == null ? 0 : textBytes.length);
+        if (record.capacity() < length) {
+            record = ByteBuffer.allocate(length);
+        }
+        record.clear();
+        record.put(type);
+        record.putShort((short) keyBytes.length).put(keyBytes);
+        if (textBytes == null) {
+            record.putShort((short) -1);
+        } else {
+            record.putShort((short) textBytes.length).put(textBytes);
+        }
+        record.putLong(a).putLong(b);
+        record.flip();
+        crc.reset();
+        crc.update(record.duplicate());
+
+        ensureCapacity(8 + length);
+        buffer.position(position + 4);
+        buffer.put(record);
+        buffer.putInt((int) crc.getValue());
+        // The length goes last: until it is written, the record isn't there.
+        buffer.putInt(position, length);
+        position += 8 + length;
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        long required = (long) position + needed;
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        long size = Math.max(2L * buffer.capacity(), required);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot file full");
+        }
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Bytes written so far.
+     */
+    public synchronized int size() {
+        return position;
+    }
+
+    /**
+     * Write the appended records to disk.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
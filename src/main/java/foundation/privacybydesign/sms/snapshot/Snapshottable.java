@@ -0,0 +1,21 @@
+package foundation.privacybydesign.sms.snapshot;
+
+import java.io.IOException;
+
+/**
+ * An in-memory store that can be saved to and restored from a
+ * SnapshotJournal.
+ */
+public interface Snapshottable {
+    /**
+     * Append the entries that changed since the previous call, or all
+     * entries when full is true. Must not block the request threads. After a
+     * full snapshot the store keeps track of the changes.
+     */
+    void snapshot(SnapshotJournal journal, boolean full) throws IOException;
+
+    /**
+     * Apply a record from the journal. Records of other stores are ignored.
+     */
+    void restore(byte type, String key, String text, long a, long b);
+}
@@ -0,0 +1,202 @@
+package foundation.privacybydesign.sms.tokens;
+
+import foundation.privacybydesign.sms.common.HmacDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * A token repository that stores tokens in RAM, packed in primitive arrays.
+ * Should not be used when the sms issuer needs to be stateless.
+ *
+ * The key is the 32-byte HMAC of the phone number, as four longs. The value
+ * is a single long:
+ *
+ *   bits 34-63: token, 5 bits per character
+ *   bits 31-33: tries
+ *   bits  0-30: creation time in seconds since 2020-01-01 (good until 2088)
+ *
+ * An entry takes about 80 bytes, where InMemoryTokenRequestRepository needs
+ * about 300, and verifying a token doesn't allocate. Creation times are
+ * rounded down to the second.
+ */
+class CompactTokenRequestRepository implements TokenRequestRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(CompactTokenRequestRepository.class);
+
+    // The characters of TokenManager.generate(), in the order of their value.
+    private static final String TOKEN_ALPHABET = "WY23456789ABCDEFGHZJKLMNXPQRSTUV";
+    private static final int TOKEN_LENGTH = 6;
+    private static final byte[] TOKEN_VALUES = new byte[128];
+
+    private static final long EPOCH = 1577836800000L; // 2020-01-01T00:00:00Z
+    private static final int TOKEN_SHIFT = 34;
+    private static final int TRIES_SHIFT = 31;
+    private static final long TRIES_MASK = 0x7;
+    private static final long CREATED_MASK = 0x7FFFFFFFL;
+
+    static {
+        Arrays.fill(TOKEN_VALUES, (byte) -1);
+        for (int i = 0; i < TOKEN_ALPHABET.length(); i++) {
+            TOKEN_VALUES[TOKEN_ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    // Packed token requests.
+    private final PackedTable tokens;
+    // The time until which sending is claimed, in milliseconds.
+    private final PackedTable claims;
+
+    private static final PackedTable.Update STORE = (current, value, unused) -> value;
+    private static final PackedTable.Update REMOVE = (current, unused1, unused2) -> PackedTable.EMPTY;
+    // a: the packed token to check, b: the creation time before which the
+    // token is expired.
+    private static final PackedTable.Update VERIFY = (current, token, expiredBefore) -> {
+        if (current == PackedTable.EMPTY || createdMillis(current) < expiredBefore
+                || tries(current) > TokenManager.MAX_TRIES || token(current) == token) {
+            return PackedTable.EMPTY;
+        }
+        long tries = tries(current) + 1;
+        if (tries > TokenManager.MAX_TRIES) {
+            return PackedTable.EMPTY;
+        }
+        return (current & ~(TRIES_MASK << TRIES_SHIFT)) | (tries << TRIES_SHIFT);
+    };
+    // a: the current time, b: the claim window.
+    private static final PackedTable.Update CLAIM = (until, now, window) ->
+            until != PackedTable.EMPTY && until > now ? until : now + window;
+
+    CompactTokenRequestRepository(long validityMillis, long maxEntries) {
+        tokens = new PackedTable(maxEntries, value -> createdMillis(value) + validityMillis);
+        claims = new PackedTable(maxEntries, until -> until);
+    }
+
+    static long pack(String token, int tries, long createdMillis) {
+        long packedToken = packToken(token);
+        if (packedToken < 0) {
+            throw new IllegalArgumentException("Token can't be packed: " + token);
+        }
+        long created = Math.max(0, Math.min(CREATED_MASK, (createdMillis - EPOCH) / 1000));
+        return (packedToken << TOKEN_SHIFT)
+                | ((long) Math.min(tries, (int) TRIES_MASK) << TRIES_SHIFT)
+                | created;
+    }
+
+    /**
+     * The 30-bit value of the token, or -1 when it isn't a valid token.
+     */
+    static long packToken(String token) {
+        if (token == null || token.length() != TOKEN_LENGTH) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            char c = token.charAt(i);
+            int digit = c < TOKEN_VALUES.length ? TOKEN_VALUES[c] : -1;
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 5) | digit;
+        }
+        return value;
+    }
+
+    static String unpackToken(long value) {
+        char[] token = new char[TOKEN_LENGTH];
+        for (int i = TOKEN_LENGTH - 1; i >= 0; i--) {
+            token[i] = TOKEN_ALPHABET.charAt((int) (value & 0x1F));
+            value >>>= 5;
+        }
+        return new String(token);
+    }
+
+    private static long token(long value) {
+        return value >>> TOKEN_SHIFT;
+    }
+
+    private static int tries(long value) {
+        return (int) ((value >>> TRIES_SHIFT) & TRIES_MASK);
+    }
+
+    private static long createdMillis(long value) {
+        return EPOCH + (value & CREATED_MASK) * 1000;
+    }
+
+    private static long update(PackedTable table, HmacDigest phoneHash, PackedTable.Update update, long a, long b) {
+        return table.getAndUpdate(phoneHash.word(0), phoneHash.word(1),
+                phoneHash.word(2), phoneHash.word(3), update, a, b);
+    }
+
+    @Override
+    public void store(HmacDigest phoneHash, TokenRequest request) {
+        update(tokens, phoneHash, STORE, pack(request.token, request.tries, request.created), 0);
+    }
+
+    @Override
+    public TokenRequest retrieve(HmacDigest phoneHash) {
+        long value = tokens.get(phoneHash.word(0), phoneHash.word(1),
+                phoneHash.word(2), phoneHash.word(3));
+        if (value == PackedTable.EMPTY) {
+            return null;
+        }
+        return new TokenRequest(unpackToken(token(value)), tries(value), createdMillis(value));
+    }
+
+    @Override
+    public void remove(HmacDigest phoneHash) {
+        update(tokens, phoneHash, REMOVE, 0, 0);
+        update(claims, phoneHash, REMOVE, 0, 0);
+    }
+
+    @Override
+    public VerificationResult verify(HmacDigest phoneHash, String token, long validityMillis) {
+        long packedToken = packToken(token);
+        long expiredBefore = System.currentTimeMillis() - validityMillis;
+        long previous = update(tokens, phoneHash, VERIFY, packedToken, expiredBefore);
+        if (previous == PackedTable.EMPTY) {
+            return VerificationResult.NOT_FOUND;
+        }
+        final VerificationResult result;
+        if (createdMillis(previous) < expiredBefore) {
+            result = VerificationResult.EXPIRED;
+        } else if (tries(previous) > TokenManager.MAX_TRIES) {
+            result = VerificationResult.TOO_MANY_TRIES;
+        } else if (token(previous) == packedToken) {
+            result = VerificationResult.OK;
+        } else {
+            result = VerificationResult.WRONG_TOKEN;
+            if (tries(previous) + 1 <= TokenManager.MAX_TRIES) {
+                return result;
+            }
+        }
+        // VERIFY removed the token request, so the next request may send at once.
+        update(claims, phoneHash, REMOVE, 0, 0);
+        return result;
+    }
+
+    @Override
+    public boolean claim(HmacDigest phoneHash, long windowMillis) {
+        long now = System.currentTimeMillis();
+        long previous = update(claims, phoneHash, CLAIM, now, windowMillis);
+        return previous == PackedTable.EMPTY || previous <= now;
+    }
+
+    @Override
+    public void releaseClaim(HmacDigest phoneHash) {
+        update(claims, phoneHash, REMOVE, 0, 0);
+    }
+
+    long size() {
+        return tokens.size();
+    }
+
+    @Override
+    public void removeExpired() {
+        tokens.removeExpired();
+        claims.removeExpired();
+        LOG.info(String.format("Compact tokens: %d entries (%d kB), %d evicted",
+                tokens.size(), tokens.memoryUsage() / 1024, tokens.evictionCount()));
+        LOG.info(String.format("Compact send claims: %d entries (%d kB), %d evicted",
+                claims.size(), claims.memoryUsage() / 1024, claims.evictionCount()));
+    }
+}
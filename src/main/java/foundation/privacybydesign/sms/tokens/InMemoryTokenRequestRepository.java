@@ -1,38 +1,279 @@
 package foundation.privacybydesign.sms.tokens;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import foundation.privacybydesign.sms.common.CacheStatistics;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import foundation.privacybydesign.sms.snapshot.SnapshotJournal;
+import foundation.privacybydesign.sms.snapshot.Snapshottable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A token repository that stores tokens in RAM.
  * Should not be used when the sms issuer needs to be stateless.
+ *
+ * The number of tokens is bounded, so a flood of requests for different
+ * phone numbers can't exhaust the heap. Expired tokens are removed first;
+ * beyond that Caffeine's W-TinyLFU policy decides which tokens to evict.
+ *
+ * Every entry has its own expiry time, kept in Caffeine's hierarchical timer
+ * wheel. The scheduler removes entries as soon as they expire, so the cost
+ * of expiry depends on the number of expired entries, not on the number of
+ * live ones.
+ *
+ * The tokens and claims can be saved to a SnapshotJournal; after the first
+ * full snapshot the phone hashes with changes are kept in a set, so that the
+ * next snapshots only write those.
  */
-class InMemoryTokenRequestRepository implements TokenRequestRepository {
-    private final Map<String, TokenRequest> tokenMap = new ConcurrentHashMap<>();
+class InMemoryTokenRequestRepository implements TokenRequestRepository, Snapshottable {
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryTokenRequestRepository.class);
+    // Key (32 byte digest), TokenRequest, token (6 chars) and cache node.
+    private static final int TOKEN_ENTRY_BYTES = 280;
+    private static final int CLAIM_ENTRY_BYTES = 200;
+
+    private final Cache<HmacDigest, TokenRequest> tokens;
+    private final Map<HmacDigest, TokenRequest> tokenMap;
+    // Phone hash to the time until which sending is claimed.
+    private final Cache<HmacDigest, Long> claimCache;
+    private final Map<HmacDigest, Long> claims;
+    private final long validityMillis;
+    // Phone hashes changed since the last snapshot, null until the first one.
+    private volatile Set<HmacDigest> changed;
+
+    InMemoryTokenRequestRepository(long validityMillis, long maxEntries) {
+        this.validityMillis = validityMillis;
+        tokens = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new Expiry<HmacDigest, TokenRequest>() {
+                    @Override
+                    public long expireAfterCreate(HmacDigest key, TokenRequest request, long currentTime) {
+                        return remainingNanos(request.created + validityMillis);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(HmacDigest key, TokenRequest request, long currentTime,
+                                                  long currentDuration) {
+                        return remainingNanos(request.created + validityMillis);
+                    }
+
+                    @Override
+                    public long expireAfterRead(HmacDigest key, TokenRequest request, long currentTime,
+                                                long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .scheduler(Scheduler.systemScheduler())
+                .recordStats()
+                .build();
+        tokenMap = tokens.asMap();
+
+        claimCache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new Expiry<HmacDigest, Long>() {
+                    @Override
+                    public long expireAfterCreate(HmacDigest key, Long until, long currentTime) {
+                        return remainingNanos(until);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(HmacDigest key, Long until, long currentTime, long currentDuration) {
+                        return remainingNanos(until);
+                    }
+
+                    @Override
+                    public long expireAfterRead(HmacDigest key, Long until, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .scheduler(Scheduler.systemScheduler())
+                .recordStats()
+                .build();
+        claims = claimCache.asMap();
+    }
+
+    private static long remainingNanos(long until) {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, until - System.currentTimeMillis()));
+    }
+
+    private void changed(HmacDigest phoneHash) {
+        Set<HmacDigest> set = changed;
+        if (set != null) {
+            set.add(phoneHash);
+        }
+    }
 
     @Override
-    public void store(String phone, TokenRequest request) {
+    public void store(HmacDigest phone, TokenRequest request) {
         tokenMap.put(phone, request);
+        changed(phone);
     }
 
     @Override
-    public TokenRequest retrieve(String phone) {
+    public TokenRequest retrieve(HmacDigest phone) {
         return tokenMap.get(phone);
     }
 
     @Override
-    public void remove(String phone) {
+    public void remove(HmacDigest phone) {
         tokenMap.remove(phone);
+        claims.remove(phone);
+        changed(phone);
     }
 
     @Override
-    public void removeExpired() {
-        // Use enhanced for loop, because an iterator makes sure concurrency issues
-        // cannot occur.
-        for (Map.Entry<String, TokenRequest> entry : tokenMap.entrySet()) {
-            if (entry.getValue().isExpired()) {
-                tokenMap.remove(entry.getKey());
+    public VerificationResult verify(HmacDigest phoneHash, String token, long validityMillis) {
+        final long now = System.currentTimeMillis();
+        final VerificationResult[] result = { VerificationResult.NOT_FOUND };
+        final TokenRequest remaining = tokenMap.computeIfPresent(phoneHash, (key, tr) -> {
+            if (now - tr.created > validityMillis) {
+                result[0] = VerificationResult.EXPIRED;
+                return null;
+            }
+            if (tr.tries > TokenManager.MAX_TRIES) {
+                result[0] = VerificationResult.TOO_MANY_TRIES;
+                return null;
+            }
+            if (TokenManager.isEqualsConstantTime(tr.token.toCharArray(), token.toCharArray())) {
+                result[0] = VerificationResult.OK;
+                return null;
+            }
+            result[0] = VerificationResult.WRONG_TOKEN;
+            tr.tries++;
+            return tr.tries > TokenManager.MAX_TRIES ? null : tr;
+        });
+        if (result[0] != VerificationResult.NOT_FOUND) {
+            // The token request is gone, so the next request may send at once.
+            if (remaining == null) {
+                claims.remove(phoneHash);
+            }
+            changed(phoneHash);
+        }
+        return result[0];
+    }
+
+    @Override
+    public boolean claim(HmacDigest phoneHash, long windowMillis) {
+        final long now = System.currentTimeMillis();
+        final boolean[] claimed = { false };
+        claims.compute(phoneHash, (key, until) -> {
+            if (until != null && until > now) {
+                return until;
             }
+            claimed[0] = true;
+            return now + windowMillis;
+        });
+        if (claimed[0]) {
+            changed(phoneHash);
         }
+        return claimed[0];
+    }
+
+    @Override
+    public void releaseClaim(HmacDigest phoneHash) {
+        claims.remove(phoneHash);
+        changed(phoneHash);
+    }
+
+    @Override
+    public void snapshot(SnapshotJournal journal, boolean full) throws IOException {
+        if (full) {
+            // Changes from now on are either seen below or in the set.
+            changed = ConcurrentHashMap.newKeySet();
+            for (Map.Entry<HmacDigest, TokenRequest> entry : tokenMap.entrySet()) {
+                writeToken(journal, entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<HmacDigest, Long> entry : claims.entrySet()) {
+                journal.append(SnapshotJournal.CLAIM, entry.getKey().toString(), null, entry.getValue(), 0);
+            }
+            return;
+        }
+        Set<HmacDigest> set = changed;
+        if (set == null) {
+            throw new IllegalStateException("Incremental snapshot before the first full snapshot");
+        }
+        for (HmacDigest phoneHash : set) {
+            // Remove it first, so that a change made while writing is
+            // written next time.
+            set.remove(phoneHash);
+            final String key = phoneHash.toString();
+            TokenRequest request = tokenMap.get(phoneHash);
+            if (request == null) {
+                journal.append(SnapshotJournal.TOKEN_REMOVED, key, null, 0, 0);
+            } else {
+                writeToken(journal, phoneHash, request);
+            }
+            Long until = claims.get(phoneHash);
+            if (until == null) {
+                journal.append(SnapshotJournal.CLAIM_REMOVED, key, null, 0, 0);
+            } else {
+                journal.append(SnapshotJournal.CLAIM, key, null, until, 0);
+            }
+        }
+    }
+
+    private static void writeToken(SnapshotJournal journal, HmacDigest phoneHash, TokenRequest request)
+            throws IOException {
+        // tries is updated in place, so read it once.
+        int tries = request.tries;
+        journal.append(SnapshotJournal.TOKEN, phoneHash.toString(), request.token, tries, request.created);
+    }
+
+    @Override
+    public void restore(byte type, String hash, String text, long a, long b) {
+        final HmacDigest key;
+        try {
+            key = HmacDigest.fromBase64(hash);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring snapshot record with invalid key");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        switch (type) {
+            case SnapshotJournal.TOKEN:
+                if (now - b <= validityMillis) {
+                    tokenMap.put(key, new TokenRequest(text, (int) a, b));
+                } else {
+                    tokenMap.remove(key);
+                }
+                break;
+            case SnapshotJournal.TOKEN_REMOVED:
+                tokenMap.remove(key);
+                break;
+            case SnapshotJournal.CLAIM:
+                if (a > now) {
+                    claims.put(key, a);
+                } else {
+                    claims.remove(key);
+                }
+                break;
+            case SnapshotJournal.CLAIM_REMOVED:
+                claims.remove(key);
+                break;
+            default:
+                break;
+        }
+    }
+
+    long size() {
+        return tokens.estimatedSize();
+    }
+
+    /**
+     * Expired entries are evicted by the caches themselves; this only logs
+     * the statistics.
+     */
+    @Override
+    public void removeExpired() {
+        CacheStatistics.log(LOG, "In-memory tokens", tokens, TOKEN_ENTRY_BYTES);
+        CacheStatistics.log(LOG, "In-memory send claims", claimCache, CLAIM_ENTRY_BYTES);
     }
 }
@@ -0,0 +1,327 @@
+package foundation.privacybydesign.sms.tokens;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * An open addressing hash table from 256-bit keys to packed long values,
+ * split in segments that each have their own lock.
+ *
+ * The keys are HMACs, so their bits are used as the hash directly. Existing
+ * entries are updated with a CAS while holding the read lock of the segment;
+ * only adding a key and rehashing take the write lock. The values EMPTY and
+ * DELETED are reserved.
+ *
+ * Every value has a deadline after which it is expired. Expired entries are
+ * dropped when a segment is rehashed. When a segment is full, the entries
+ * with the earliest deadline are evicted.
+ */
+class PackedTable {
+    static final long EMPTY = 0;
+    static final long DELETED = 1;
+
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_CAPACITY = 16;
+    // Bytes per slot: 4 longs key and 1 long value.
+    static final int SLOT_BYTES = 40;
+
+    /**
+     * Computes the new value from the current value (EMPTY when there is
+     * none). Returning EMPTY removes the entry. May be called more than once
+     * for one update, so it should not have side effects.
+     */
+    interface Update {
+        long apply(long current, long a, long b);
+    }
+
+    private final Segment[] segments;
+    private final LongUnaryOperator deadline;
+    private long evicted = 0;
+
+    /**
+     * @param maxEntries maximum number of entries, roughly
+     * @param deadline   time in milliseconds after which a value is expired
+     */
+    PackedTable(long maxEntries, LongUnaryOperator deadline) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2L * MIN_CAPACITY <= maxEntries) {
+            count *= 2;
+        }
+        int maxLive = (int) Math.min(1 << 28, Math.max(1, (maxEntries + count - 1) / count));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxLive);
+        }
+        this.deadline = deadline;
+    }
+
+    private Segment segmentFor(long k1) {
+        return segments[(int) (k1 >>> 32) & (segments.length - 1)];
+    }
+
+    /**
+     * The value for the key, or EMPTY when there is none.
+     */
+    long get(long k0, long k1, long k2, long k3) {
+        Segment segment = segmentFor(k1);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.find(k0, k1, k2, k3);
+            if (slot < 0) {
+                return EMPTY;
+            }
+            long value = segment.values.get(slot);
+            return value == DELETED ? EMPTY : value;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically update the value of the key. Returns the previous value,
+     * EMPTY when there was none.
+     */
+    long getAndUpdate(long k0, long k1, long k2, long k3, Update update, long a, long b) {
+        Segment segment = segmentFor(k1);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.find(k0, k1, k2, k3);
+            if (slot >= 0) {
+                AtomicLongArray values = segment.values;
+                long current;
+                while ((current = values.get(slot)) != DELETED) {
+                    long next = update.apply(current, a, b);
+                    if (next == EMPTY) {
+                        next = DELETED;
+                    }
+                    if (next == current || values.compareAndSet(slot, current, next)) {
+                        return current;
+                    }
+                }
+            }
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+
+        // The key is not there. Don't bother taking the write lock when the
+        // update wouldn't add it.
+        if (update.apply(EMPTY, a, b) == EMPTY) {
+            return EMPTY;
+        }
+        stamp = segment.lock.writeLock();
+        try {
+            return segment.upsert(k0, k1, k2, k3, update, a, b);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drop the expired entries and shrink the segments where possible.
+     */
+    void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.rehash(now);
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Number of entries that are not expired.
+     */
+    long size() {
+        long now = System.currentTimeMillis();
+        long size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.countLive(now);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Memory used by the tables, in bytes.
+     */
+    long memoryUsage() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                bytes += (long) segment.values.length() * SLOT_BYTES;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    synchronized long evictionCount() {
+        return evicted;
+    }
+
+    private synchronized void countEvictions(int count) {
+        evicted += count;
+    }
+
+    private boolean isLive(long value, long now) {
+        return value != EMPTY && value != DELETED && deadline.applyAsLong(value) > now;
+    }
+
+    private final class Segment {
+        final StampedLock lock = new StampedLock();
+        final int maxLive;
+        final int maxCapacity;
+        // The key of slot i is keys[4i..4i+3]. Both arrays are only replaced
+        // while holding the write lock.
+        long[] keys;
+        AtomicLongArray values;
+        // Slots that are not EMPTY, including DELETED ones.
+        int used = 0;
+
+        Segment(int maxLive) {
+            this.maxLive = maxLive;
+            int capacity = MIN_CAPACITY;
+            while (capacity < maxLive * 2) {
+                capacity *= 2;
+            }
+            this.maxCapacity = capacity;
+            this.keys = new long[MIN_CAPACITY * 4];
+            this.values = new AtomicLongArray(MIN_CAPACITY);
+        }
+
+        /**
+         * The slot with the key (its value may be DELETED), or -1.
+         */
+        int find(long k0, long k1, long k2, long k3) {
+            int mask = values.length() - 1;
+            for (int slot = (int) k0 & mask; ; slot = (slot + 1) & mask) {
+                if (values.get(slot) == EMPTY) {
+                    return -1;
+                }
+                int i = slot * 4;
+                if (keys[i] == k0 && keys[i + 1] == k1 && keys[i + 2] == k2 && keys[i + 3] == k3) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Update or add the key. Must hold the write lock.
+         */
+        long upsert(long k0, long k1, long k2, long k3, Update update, long a, long b) {
+            int slot = find(k0, k1, k2, k3);
+            long current = slot < 0 ? DELETED : values.get(slot);
+            long next = update.apply(current == DELETED ? EMPTY : current, a, b);
+            if (slot >= 0) {
+                values.set(slot, next == EMPTY ? DELETED : next);
+                return current == DELETED ? EMPTY : current;
+            }
+            if (next == EMPTY) {
+                return EMPTY;
+            }
+            if (used + 1 > Math.min(values.length() * 3 / 4, maxLive)) {
+                rehash(System.currentTimeMillis());
+            }
+            insert(k0, k1, k2, k3, next);
+            return EMPTY;
+        }
+
+        /**
+         * Put a key that is not in the table yet. Must hold the write lock.
+         */
+        private void insert(long k0, long k1, long k2, long k3, long value) {
+            int mask = values.length() - 1;
+            int slot = (int) k0 & mask;
+            while (values.get(slot) != EMPTY && values.get(slot) != DELETED) {
+                slot = (slot + 1) & mask;
+            }
+            if (values.get(slot) == EMPTY) {
+                used++;
+            }
+            int i = slot * 4;
+            keys[i] = k0;
+            keys[i + 1] = k1;
+            keys[i + 2] = k2;
+            keys[i + 3] = k3;
+            values.set(slot, value);
+        }
+
+        int countLive(long now) {
+            int live = 0;
+            for (int slot = 0; slot < values.length(); slot++) {
+                if (isLive(values.get(slot), now)) {
+                    live++;
+                }
+            }
+            return live;
+        }
+
+        /**
+         * Copy the live entries to new arrays sized for them, evicting the
+         * oldest eighth when the segment is full so that this doesn't happen
+         * again on the next insert. Must hold the write lock.
+         */
+        void rehash(long now) {
+            long[] oldKeys = keys;
+            AtomicLongArray oldValues = values;
+            int live = countLive(now);
+
+            long evictBefore = Long.MIN_VALUE;
+            int evictAtDeadline = 0;
+            if (live >= maxLive) {
+                long[] deadlines = new long[live];
+                int n = 0;
+                for (int slot = 0; slot < oldValues.length(); slot++) {
+                    long value = oldValues.get(slot);
+                    if (isLive(value, now)) {
+                        deadlines[n++] = deadline.applyAsLong(value);
+                    }
+                }
+                Arrays.sort(deadlines);
+                int evict = Math.max(1, live - maxLive * 7 / 8);
+                evictBefore = deadlines[evict - 1];
+                evictAtDeadline = evict;
+                while (evictAtDeadline > 0 && deadlines[evict - evictAtDeadline] < evictBefore) {
+                    evictAtDeadline--;
+                }
+                live -= evict;
+                countEvictions(evict);
+            }
+
+            int capacity = MIN_CAPACITY;
+            while (capacity < (live + 1) * 3 / 2 && capacity < maxCapacity) {
+                capacity *= 2;
+            }
+            keys = new long[capacity * 4];
+            values = new AtomicLongArray(capacity);
+            used = 0;
+            for (int slot = 0; slot < oldValues.length(); slot++) {
+                long value = oldValues.get(slot);
+                if (!isLive(value, now)) {
+                    continue;
+                }
+                long d = deadline.applyAsLong(value);
+                if (d < evictBefore) {
+                    continue;
+                }
+                if (d == evictBefore && evictAtDeadline > 0) {
+                    evictAtDeadline--;
+                    continue;
+                }
+                int i = slot * 4;
+                insert(oldKeys[i], oldKeys[i + 1], oldKeys[i + 2], oldKeys[i + 3], value);
+            }
+        }
+    }
+}
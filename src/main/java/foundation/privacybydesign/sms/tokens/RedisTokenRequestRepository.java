@@ -1,98 +1,226 @@
 package foundation.privacybydesign.sms.tokens;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import foundation.privacybydesign.sms.SMSConfiguration;
+import foundation.privacybydesign.sms.common.HmacDigest;
 import foundation.privacybydesign.sms.redis.Redis;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisSentinelPool;
-import redis.clients.jedis.Transaction;
+import foundation.privacybydesign.sms.redis.RedisScript;
+import redis.clients.jedis.UnifiedJedis;
 import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.params.SetParams;
 import redis.clients.jedis.resps.ScanResult;
 
 /**
  * A token repository that stores and retrieves tokens from a redis store.
  * Useful for when the sms issuer needs to be stateless.
+ *
+ * The token request and the send claim of a phone number are in the same
+ * hash slot (see Redis.createKey), so they can be used together in one
+ * script with a Redis Cluster too.
+ *
+ * In the compact format (see Redis.isCompact) a token request is a single
+ * string of 1 byte tries, 6 bytes creation time in milliseconds (big endian)
+ * and the token, stored with SET PX. Token requests in the original format are
+ * still found until they expire, see verify-token-compact.lua.
  */
 class RedisTokenRequestRepository implements TokenRequestRepository {
     private static Logger LOG = LoggerFactory.getLogger(RedisTokenRequestRepository.class);
     private static final String namespace = "request";
+    private static final String claimNamespace = "send-claim";
     private static final String tokenFieldName = "token";
     private static final String triesFieldName = "tries";
     private static final String createdFieldName = "created";
+    private static final char compactTag = 'T';
+    private static final char compactClaimTag = 'C';
+    private static final byte[] claimValue = {'1'};
 
-    JedisSentinelPool pool;
+    private static final RedisScript storeScript = RedisScript.fromResource("store-token.lua");
+    private static final RedisScript verifyScript = RedisScript.fromResource("verify-token.lua");
+    private static final RedisScript compactVerifyScript = RedisScript.fromResource("verify-token-compact.lua");
+
+    UnifiedJedis jedis;
 
     RedisTokenRequestRepository() {
-        pool = Redis.createSentinelPoolFromEnv();
+        jedis = Redis.createClientFromEnv();
     }
 
     @Override
-    public void store(String phoneHash, TokenRequest request) {
-        final String key = Redis.createKey(namespace, phoneHash);
-        try (var jedis = pool.getResource()) {
-            jedis.watch(key);
+    public void store(HmacDigest phoneHash, TokenRequest request) {
+        if (Redis.isCompact()) {
+            final long expiresIn = expiresAt(request.created) - System.currentTimeMillis();
+            jedis.set(Redis.createCompactKey(compactTag, phoneHash), encode(request),
+                    SetParams.setParams().px(Math.max(1, expiresIn)));
+            return;
+        }
+        // The fields and the expiry are set in one script, so the token
+        // request can't be left without an expiry.
+        storeScript.eval(jedis, List.of(Redis.createKey(namespace, phoneHash)), List.of(
+                request.token,
+                Integer.toString(request.tries),
+                Long.toString(request.created),
+                Long.toString(expiresAt(request.created))));
+    }
 
-            Transaction transaction = jedis.multi();
-            transaction.hset(key, tokenFieldName, request.token);
-            transaction.hset(key, triesFieldName, Integer.toString(request.tries));
-            transaction.hset(key, createdFieldName, String.valueOf(request.created));
+    @Override
+    public void remove(HmacDigest phoneHash) {
+        if (Redis.isCompact()) {
+            jedis.del(compactKeys(phoneHash).toArray(new byte[0][]));
+            return;
+        }
+        final String key = Redis.createKey(namespace, phoneHash);
+        final String claimKey = Redis.createKey(claimNamespace, phoneHash);
 
-            final List<Object> result = transaction.exec();
+        jedis.del(key, claimKey);
+    }
 
-            if (result == null) {
-                LOG.error("failed to set token: redis transaction exec() result is null");
-                return;
-            }
-            for (var r : result) {
-                if (r instanceof Exception) {
-                    LOG.error("failed to set token: " + ((Exception) r).getMessage());
-                }
+    @Override
+    public VerificationResult verify(HmacDigest phoneHash, String token, long validityMillis) {
+        final List<String> args = List.of(
+                token,
+                Long.toString(System.currentTimeMillis()),
+                Long.toString(validityMillis),
+                Integer.toString(TokenManager.MAX_TRIES));
+
+        final long status;
+        if (Redis.isCompact()) {
+            final List<byte[]> binaryArgs = new ArrayList<>(args.size());
+            for (String arg : args) {
+                binaryArgs.add(arg.getBytes(StandardCharsets.UTF_8));
             }
+            status = (Long) compactVerifyScript.evalBinary(jedis, compactKeys(phoneHash), binaryArgs);
+        } else {
+            final List<String> keys = List.of(
+                    Redis.createKey(namespace, phoneHash),
+                    Redis.createKey(claimNamespace, phoneHash));
+            status = (Long) verifyScript.eval(jedis, keys, args);
+        }
+        switch ((int) status) {
+            case 0:
+                return VerificationResult.OK;
+            case 1:
+                return VerificationResult.NOT_FOUND;
+            case 2:
+                return VerificationResult.EXPIRED;
+            case 3:
+                return VerificationResult.WRONG_TOKEN;
+            case 4:
+                return VerificationResult.TOO_MANY_TRIES;
+            default:
+                throw new IllegalStateException("unexpected token verification status " + status);
         }
     }
 
     @Override
-    public void remove(String phoneHash) {
-        final String key = Redis.createKey(namespace, phoneHash);
+    public boolean claim(HmacDigest phoneHash, long windowMillis) {
+        final SetParams params = SetParams.setParams().nx().px(windowMillis);
+        // SET NX only succeeds for one of concurrent requests, on any node.
+        // Claims are short-lived, so those in the original format are ignored.
+        if (Redis.isCompact()) {
+            return "OK".equals(jedis.set(Redis.createCompactKey(compactClaimTag, phoneHash), claimValue, params));
+        }
+        final String key = Redis.createKey(claimNamespace, phoneHash);
+        return "OK".equals(jedis.set(key, "1", params));
+    }
+
+    @Override
+    public void releaseClaim(HmacDigest phoneHash) {
+        if (Redis.isCompact()) {
+            jedis.del(Redis.createCompactKey(compactClaimTag, phoneHash));
+            return;
+        }
+        jedis.del(Redis.createKey(claimNamespace, phoneHash));
+    }
+
+    /**
+     * The token request and send claim in the compact format, followed by
+     * those in the original format while they are still read.
+     */
+    private static List<byte[]> compactKeys(HmacDigest phoneHash) {
+        final List<byte[]> keys = new ArrayList<>(4);
+        keys.add(Redis.createCompactKey(compactTag, phoneHash));
+        keys.add(Redis.createCompactKey(compactClaimTag, phoneHash));
+        if (Redis.readsOriginalFormat()) {
+            keys.add(Redis.createKey(namespace, phoneHash).getBytes(StandardCharsets.UTF_8));
+            keys.add(Redis.createKey(claimNamespace, phoneHash).getBytes(StandardCharsets.UTF_8));
+        }
+        return keys;
+    }
 
-        try (var jedis = pool.getResource()) {
-            jedis.del(key);
+    static byte[] encode(TokenRequest request) {
+        final byte[] token = request.token.getBytes(StandardCharsets.US_ASCII);
+        final byte[] value = new byte[7 + token.length];
+        value[0] = (byte) request.tries;
+        for (int i = 0; i < 6; i++) {
+            value[6 - i] = (byte) (request.created >>> (8 * i));
         }
+        System.arraycopy(token, 0, value, 7, token.length);
+        return value;
     }
 
-    // TODO: This is not the idiomatic way to delete expired items in Redis,
-    // use the built in `expire` command instead
+    static TokenRequest decode(byte[] value) {
+        long created = 0;
+        for (int i = 1; i < 7; i++) {
+            created = (created << 8) | (value[i] & 0xFF);
+        }
+        final String token = new String(value, 7, value.length - 7, StandardCharsets.US_ASCII);
+        return new TokenRequest(token, value[0] & 0xFF, created);
+    }
+
+    private static long expiresAt(long created) {
+        return created + SMSConfiguration.getInstance().getSMSTokenValidity() * 1000;
+    }
+
+    /**
+     * Token requests expire by themselves in Redis, so there is nothing to
+     * clean up.
+     */
     @Override
     public void removeExpired() {
+    }
+
+    /**
+     * Give an expiry to token requests stored by older versions, which didn't
+     * set one. This scans all token requests, so it only runs once, on one
+     * node. Older versions didn't support Redis Cluster, so there is nothing
+     * to do with a cluster.
+     */
+    @Override
+    public void addMissingExpiry() {
+        if (Redis.isCluster() || !Redis.claimOneOffTask(jedis, "expiry-" + namespace)) {
+            return;
+        }
+        LOG.info("Adding an expiry to token requests without one");
         final String pattern = Redis.createNamespace(namespace) + "*";
         ScanParams scanParams = new ScanParams().match(pattern);
         String cursor = "0";
 
-        try (var jedis = pool.getResource()) {
-            do {
-                ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
-                List<String> keys = scanResult.getResult();
-                cursor = scanResult.getCursor();
+        do {
+            ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+            List<String> keys = scanResult.getResult();
+            cursor = scanResult.getCursor();
 
-                for (String key : keys) {
-                    removeIfExpired(jedis, key);
-                }
-            } while (!cursor.equals("0")); // continue until the cursor wraps around
-        }
+            for (String key : keys) {
+                removeIfExpired(key);
+            }
+        } while (!cursor.equals("0")); // continue until the cursor wraps around
     }
 
-    private void removeIfExpired(Jedis jedis, String key) {
+    private void removeIfExpired(String key) {
+        if (jedis.pttl(key) != -1) {
+            return; // already has an expiry (or is gone)
+        }
         final String createdStr = jedis.hget(key, createdFieldName);
         if (createdStr != null) {
             try {
-                final long created = Long.parseLong(createdStr);
-                if (TokenRequest.isExpiredForCreationDate(created)) {
-                    jedis.del(key);
-                }
+                // Deletes the key when the time is in the past.
+                jedis.pexpireAt(key, expiresAt(Long.parseLong(createdStr)));
             } catch (NumberFormatException e) {
                 LOG.error("Failed to parse creation into long.", e);
             }
@@ -100,21 +228,28 @@ class RedisTokenRequestRepository implements TokenRequestRepository {
     }
 
     @Override
-    public TokenRequest retrieve(String phoneHash) {
+    public TokenRequest retrieve(HmacDigest phoneHash) {
+        if (Redis.isCompact()) {
+            final byte[] value = jedis.get(Redis.createCompactKey(compactTag, phoneHash));
+            if (value != null) {
+                return decode(value);
+            }
+            if (!Redis.readsOriginalFormat()) {
+                return null;
+            }
+        }
         final String key = Redis.createKey(namespace, phoneHash);
-        try (var jedis = pool.getResource()) {
-            try {
-                final Map<String, String> fields = jedis.hgetAll(key);
+        try {
+            final Map<String, String> fields = jedis.hgetAll(key);
 
-                final String token = fields.get(tokenFieldName);
-                final int tries = Integer.parseInt(fields.get(triesFieldName));
-                final long created = Long.parseLong(fields.get(createdFieldName));
+            final String token = fields.get(tokenFieldName);
+            final int tries = Integer.parseInt(fields.get(triesFieldName));
+            final long created = Long.parseLong(fields.get(createdFieldName));
 
-                return new TokenRequest(token, tries, created);
-            } catch (NumberFormatException e) {
-                LOG.error("Failed to parse tries or created field", e);
-                return null;
-            }
+            return new TokenRequest(token, tries, created);
+        } catch (NumberFormatException e) {
+            LOG.error("Failed to parse tries or created field", e);
+            return null;
         }
     }
 }
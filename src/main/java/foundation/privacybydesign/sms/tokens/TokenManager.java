@@ -3,46 +3,72 @@ package foundation.privacybydesign.sms.tokens;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import foundation.privacybydesign.sms.SMSConfiguration;
 import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import foundation.privacybydesign.sms.snapshot.Snapshottable;
 
 import java.math.BigInteger;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 /**
  * Generate and verify tokens sent in the SMS message.
  * A token is locked to an IP address and a phone number.
+ *
+ * Phone numbers are identified by their HMAC (Hmac.createHmac), which the
+ * caller derives once per request.
  */
 public class TokenManager {
-    static private TokenManager instance;
+    static private volatile TokenManager instance;
     private static final Logger LOG = LoggerFactory.getLogger(TokenManager.class);
 
+    // User may try at most 3 times, it shouldn't be that hard.
+    static final int MAX_TRIES = 3;
+
     private final TokenRequestRepository tokenRepo;
     private final SecureRandom random;
 
     public TokenManager() {
+        this(createRepository());
+    }
+
+    TokenManager(TokenRequestRepository tokenRepo) {
+        this.tokenRepo = tokenRepo;
+        random = new SecureRandom();
+    }
+
+    private static TokenRequestRepository createRepository() {
+        final TokenRequestRepository tokenRepo;
         final String storageType = System.getenv("STORAGE_TYPE");
         if (storageType.equals("redis")) {
             LOG.info("using Redis token request repository");
             tokenRepo = new RedisTokenRequestRepository();
+        } else if (storageType.equals("memory-compact")) {
+            LOG.info("using compact InMemory token request repository");
+            SMSConfiguration conf = SMSConfiguration.getInstance();
+            tokenRepo = new CompactTokenRequestRepository(conf.getSMSTokenValidity() * 1000,
+                    conf.getMemoryStoreMaxEntries());
         } else {
             LOG.info("using InMemory token request repository");
-            tokenRepo = new InMemoryTokenRequestRepository();
+            SMSConfiguration conf = SMSConfiguration.getInstance();
+            tokenRepo = new InMemoryTokenRequestRepository(conf.getSMSTokenValidity() * 1000,
+                    conf.getMemoryStoreMaxEntries());
         }
-        random = new SecureRandom();
+        return tokenRepo;
     }
 
     public static TokenManager getInstance() {
         if (instance == null) {
-            instance = new TokenManager();
+            synchronized (TokenManager.class) {
+                if (instance == null) {
+                    instance = new TokenManager();
+                }
+            }
         }
         return instance;
     }
 
-    public String generate(String phone, Hmac hmac) throws Exception {
-        final String phoneHash = hmac.createHmac(phone);
-        
+    public String generate(HmacDigest phoneHash) throws Exception {
         // https://stackoverflow.com/a/41156/559350
         // There are 30 bits. Using 32 possible values per char means
         // every char consumes exactly 5 bits, thus a token is 6 bytes.
@@ -62,33 +88,49 @@ public class TokenManager {
         return token;
     }
 
-    public boolean verify(String phone, String token, Hmac hmac)
-            throws NoSuchAlgorithmException, InvalidKeyException {
-        final String phoneHash = hmac.createHmac(phone);
-        TokenRequest tr = tokenRepo.retrieve(phoneHash);
-        if (tr == null) {
-            LOG.error("Phone number not found");
-            return false;
+    /**
+     * Claim sending a new token to the phone. Returns false when a token was
+     * sent to it less than send_dedupe_window seconds ago and hasn't been
+     * verified yet, in which case no new token should be sent.
+     */
+    public boolean claimSend(HmacDigest phoneHash) {
+        final long window = SMSConfiguration.getInstance().getSendDedupeWindow() * 1000L;
+        if (window <= 0) {
+            return true;
         }
+        return tokenRepo.claim(phoneHash, window);
+    }
 
-        if (tr.isExpired()) {
-            // Expired, but not yet cleaned out by periodicCleanup()
-            LOG.error("Token expired");
-            return false;
-        }
-        if (!isEqualsConstantTime(tr.token.toCharArray(), token.toCharArray())) {
-            tr.tries++;
-            LOG.error("Token is wrong");
-            return false;
+    /**
+     * Undo claimSend(), for when the token could not be sent.
+     */
+    public void releaseSend(HmacDigest phoneHash) {
+        if (SMSConfiguration.getInstance().getSendDedupeWindow() > 0) {
+            tokenRepo.releaseClaim(phoneHash);
         }
-        if (tr.tries > 3) {
-            LOG.error("Token was tried to validate too often");
-            // User may try at most 3 times, it shouldn't be that hard.
-            // TODO: report this error back to the user.
-            return false;
+    }
+
+    public boolean verify(HmacDigest phoneHash, String token) {
+        final long validity = SMSConfiguration.getInstance().getSMSTokenValidity() * 1000;
+        switch (tokenRepo.verify(phoneHash, token, validity)) {
+            case OK:
+                return true;
+            case NOT_FOUND:
+                LOG.error("Phone number not found");
+                return false;
+            case EXPIRED:
+                // Expired, but not yet cleaned out by periodicCleanup()
+                LOG.error("Token expired");
+                return false;
+            case WRONG_TOKEN:
+                LOG.error("Token is wrong");
+                return false;
+            case TOO_MANY_TRIES:
+            default:
+                LOG.error("Token was tried to validate too often");
+                // TODO: report this error back to the user.
+                return false;
         }
-        tokenRepo.remove(phoneHash);
-        return true;
     }
 
     /**
@@ -106,7 +148,44 @@ public class TokenManager {
         return result == 0;
     }
 
+    /**
+     * The token repository if it can be saved in a snapshot, otherwise null.
+     */
+    public Snapshottable getSnapshottable() {
+        return tokenRepo instanceof Snapshottable ? (Snapshottable) tokenRepo : null;
+    }
+
+    /**
+     * Generate and verify tokens of made-up phone numbers in a private
+     * repository of the same type, so that the JIT has compiled that code
+     * before the first requests. With Redis this only checks that it can be
+     * reached, as the tokens would otherwise end up in Redis.
+     */
+    public void warmUp(int iterations, Hmac hmac) throws Exception {
+        if (tokenRepo instanceof RedisTokenRequestRepository) {
+            ((RedisTokenRequestRepository) tokenRepo).jedis.ping();
+            return;
+        }
+        final long validity = SMSConfiguration.getInstance().getSMSTokenValidity() * 1000;
+        final int entries = Math.max(iterations, 1);
+        final TokenManager scratch = new TokenManager(tokenRepo instanceof CompactTokenRequestRepository
+                ? new CompactTokenRequestRepository(validity, entries)
+                : new InMemoryTokenRequestRepository(validity, entries));
+        for (int i = 0; i < iterations; i++) {
+            final HmacDigest phoneHash = hmac.createHmac("warm-up " + i);
+            scratch.claimSend(phoneHash);
+            final String token = scratch.generate(phoneHash);
+            if (!scratch.verify(phoneHash, token)) {
+                throw new IllegalStateException("token could not be verified during warm-up");
+            }
+        }
+    }
+
     public void periodicCleanup() {
         tokenRepo.removeExpired();
     }
+
+    public void addMissingExpiry() {
+        tokenRepo.addMissingExpiry();
+    }
 }
\ No newline at end of file
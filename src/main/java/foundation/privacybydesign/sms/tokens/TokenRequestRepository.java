@@ -1,20 +1,49 @@
 
 package foundation.privacybydesign.sms.tokens;
 
+import foundation.privacybydesign.sms.common.HmacDigest;
+
 /**
  * An interface for a repository to store tokens in.
  */
 public interface TokenRequestRepository {
-    void store(String phone, TokenRequest request);
+    void store(HmacDigest phoneHash, TokenRequest request);
 
     /**
      * Retrieve the token request corresponding to the provided phone number.
      * Should return null when there's no request found.
      */
-    TokenRequest retrieve(String phoneHash);
+    TokenRequest retrieve(HmacDigest phoneHash);
+
+    void remove(HmacDigest phoneHash);
 
-    void remove(String phone);
+    /**
+     * Atomically check the token against the stored request. A wrong token
+     * counts as a try; the request is removed when the token is correct,
+     * expired (older than validityMillis) or tried more than
+     * TokenManager.MAX_TRIES times.
+     */
+    VerificationResult verify(HmacDigest phoneHash, String token, long validityMillis);
+
+    /**
+     * Atomically claim sending a token to the phone for the given number of
+     * milliseconds. Returns false when it was already claimed within that
+     * window. The claim is dropped when the token is removed.
+     */
+    boolean claim(HmacDigest phoneHash, long windowMillis);
+
+    /**
+     * Drop the claim, so that a new token can be sent right away.
+     */
+    void releaseClaim(HmacDigest phoneHash);
 
     void removeExpired();
+
+    /**
+     * Give an expiry to token requests stored without one by older versions.
+     * Only needed for Redis storage.
+     */
+    default void addMissingExpiry() {
+    }
 }
 
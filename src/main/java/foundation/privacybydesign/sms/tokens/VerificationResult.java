@@ -0,0 +1,12 @@
+package foundation.privacybydesign.sms.tokens;
+
+/**
+ * Outcome of verifying a token against the stored token request.
+ */
+public enum VerificationResult {
+    OK,
+    NOT_FOUND,
+    EXPIRED,
+    WRONG_TOKEN,
+    TOO_MANY_TRIES
+}
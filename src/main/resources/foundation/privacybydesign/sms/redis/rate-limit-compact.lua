@@ -0,0 +1,111 @@
+-- Same as rate-limit.lua, for the compact format (REDIS_KEY_FORMAT 2).
+--
+-- KEYS[1]: IP limit (string: 6 bytes time of the next try in milliseconds,
+--          big endian)
+-- KEYS[2]: phone limit (string: 1 byte tries and 6 bytes timestamp)
+-- KEYS[3]: optional, the IP limit in the original format, which is used when
+--          KEYS[1] doesn't exist
+-- KEYS[4]: optional, the phone limit in the original format
+-- ARGV[1]: current time in milliseconds
+-- ARGV[2]: optional, "ip" or "phone" to only check and count that limit,
+--          which is then KEYS[1] (see rate-limit.lua).
+--
+-- Returns the same as rate-limit.lua. Limits are always written in the
+-- compact format.
+local SECOND = 1000
+local MINUTE = 60 * SECOND
+local HOUR = 60 * MINUTE
+local DAY = 24 * HOUR
+local IP_TIMEOUT = 10 * SECOND
+local IP_TRIES = 3
+local PHONE_LIMIT_LIFETIME = 5 * DAY
+
+local function decode(s, first, last)
+    local n = 0
+    for i = first, last do
+        n = n * 256 + string.byte(s, i)
+    end
+    return n
+end
+
+local function encode(n, width)
+    local bytes = {}
+    for i = width, 1, -1 do
+        bytes[i] = n % 256
+        n = math.floor(n / 256)
+    end
+    return string.char(unpack(bytes))
+end
+
+local now = tonumber(ARGV[1])
+local ipKey = KEYS[1]
+local phoneKey = KEYS[2]
+local originalIpKey = KEYS[3]
+local originalPhoneKey = KEYS[4]
+if ARGV[2] == 'ip' then
+    phoneKey = nil
+elseif ARGV[2] == 'phone' then
+    ipKey = nil
+    phoneKey = KEYS[1]
+end
+
+local ipNextTry = 0
+if ipKey then
+    local ipLimit = 0
+    local value = redis.call('GET', ipKey)
+    if value then
+        ipLimit = decode(value, 1, 6)
+    elseif originalIpKey then
+        ipLimit = tonumber(redis.call('GET', originalIpKey)) or 0
+    end
+    if ipLimit < now - IP_TIMEOUT * IP_TRIES then
+        ipLimit = now - IP_TIMEOUT * IP_TRIES
+    end
+    ipNextTry = ipLimit + IP_TIMEOUT
+end
+
+local phoneNextTry = 0
+local timestamp, tries
+if phoneKey then
+    timestamp = now
+    tries = 0
+    local value = redis.call('GET', phoneKey)
+    if value then
+        tries = string.byte(value, 1)
+        timestamp = decode(value, 2, 7)
+    elseif originalPhoneKey then
+        local phone = redis.call('HMGET', originalPhoneKey, 'timestamp', 'tries')
+        timestamp = tonumber(phone[1]) or now
+        tries = tonumber(phone[2]) or 0
+    end
+    if tries == 0 then
+        phoneNextTry = timestamp
+    elseif tries == 1 then
+        phoneNextTry = timestamp + 10 * SECOND
+    elseif tries == 2 then
+        phoneNextTry = timestamp + 5 * MINUTE
+    elseif tries == 3 then
+        phoneNextTry = timestamp + 3 * HOUR
+    else
+        phoneNextTry = timestamp + 24 * HOUR
+    end
+end
+
+local retryAfter = math.max(ipNextTry, phoneNextTry)
+if retryAfter > now then
+    return retryAfter
+end
+
+if ipKey then
+    redis.call('SET', ipKey, encode(ipNextTry, 6), 'PX', ipNextTry + IP_TIMEOUT * IP_TRIES - now)
+end
+
+if phoneKey then
+    tries = math.min(tries + 1, 5)
+    local bonusTries = tries - math.floor((now - timestamp) / DAY)
+    if bonusTries >= 1 then
+        tries = bonusTries
+    end
+    redis.call('SET', phoneKey, string.char(tries) .. encode(now, 6), 'PX', PHONE_LIMIT_LIFETIME)
+end
+return 0
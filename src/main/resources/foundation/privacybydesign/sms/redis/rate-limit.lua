@@ -0,0 +1,82 @@
+-- Check the IP address and phone number rate limits and, when neither is
+-- exceeded, count this request. Same algorithm as MemoryRateLimit.
+--
+-- KEYS[1]: IP limit (string, timestamp)
+-- KEYS[2]: phone limit (hash with timestamp and tries)
+-- ARGV[1]: current time in milliseconds
+-- ARGV[2]: optional, "ip" or "phone" to only check and count that limit,
+--          which is then KEYS[1]. With Redis Cluster the two keys are in
+--          different slots, so they can't be used in one script.
+--
+-- Returns the time at which the next request is allowed when a limit is
+-- exceeded (nothing is counted then), or 0 when the request is allowed.
+local SECOND = 1000
+local MINUTE = 60 * SECOND
+local HOUR = 60 * MINUTE
+local DAY = 24 * HOUR
+local IP_TIMEOUT = 10 * SECOND
+local IP_TRIES = 3
+local PHONE_LIMIT_LIFETIME = 5 * DAY
+
+local now = tonumber(ARGV[1])
+local ipKey = KEYS[1]
+local phoneKey = KEYS[2]
+if ARGV[2] == 'ip' then
+    phoneKey = nil
+elseif ARGV[2] == 'phone' then
+    ipKey = nil
+    phoneKey = KEYS[1]
+end
+
+-- Allow at most 1 try in each period (IP_TIMEOUT), but kick in only after 3
+-- tries.
+local ipNextTry = 0
+if ipKey then
+    local ipLimit = tonumber(redis.call('GET', ipKey)) or 0
+    if ipLimit < now - IP_TIMEOUT * IP_TRIES then
+        ipLimit = now - IP_TIMEOUT * IP_TRIES
+    end
+    ipNextTry = ipLimit + IP_TIMEOUT
+end
+
+-- Phone number: 10 seconds, 5 minutes, 3 hours and then 24 hours.
+local phoneNextTry = 0
+local timestamp, tries
+if phoneKey then
+    local phone = redis.call('HMGET', phoneKey, 'timestamp', 'tries')
+    timestamp = tonumber(phone[1]) or now
+    tries = tonumber(phone[2]) or 0
+    if tries == 0 then
+        phoneNextTry = timestamp
+    elseif tries == 1 then
+        phoneNextTry = timestamp + 10 * SECOND
+    elseif tries == 2 then
+        phoneNextTry = timestamp + 5 * MINUTE
+    elseif tries == 3 then
+        phoneNextTry = timestamp + 3 * HOUR
+    else
+        phoneNextTry = timestamp + 24 * HOUR
+    end
+end
+
+local retryAfter = math.max(ipNextTry, phoneNextTry)
+if retryAfter > now then
+    return retryAfter
+end
+
+-- Count the request.
+if ipKey then
+    redis.call('SET', ipKey, ipNextTry, 'PX', ipNextTry + IP_TIMEOUT * IP_TRIES - now)
+end
+
+if phoneKey then
+    tries = math.min(tries + 1, 5)
+    -- If the last usage was e.g. >=2 days ago, allow 2 extra tries this day.
+    local bonusTries = tries - math.floor((now - timestamp) / DAY)
+    if bonusTries >= 1 then
+        tries = bonusTries
+    end
+    redis.call('HSET', phoneKey, 'timestamp', now, 'tries', tries)
+    redis.call('PEXPIREAT', phoneKey, now + PHONE_LIMIT_LIFETIME)
+end
+return 0
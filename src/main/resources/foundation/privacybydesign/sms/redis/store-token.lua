@@ -0,0 +1,11 @@
+-- Store a token request, replacing an earlier one for the same phone number,
+-- together with its expiry.
+--
+-- KEYS[1]: token request (hash with token, tries and created)
+-- ARGV[1]: token
+-- ARGV[2]: tries
+-- ARGV[3]: creation time in milliseconds
+-- ARGV[4]: expiry time in milliseconds
+redis.call('HSET', KEYS[1], 'token', ARGV[1], 'tries', ARGV[2], 'created', ARGV[3])
+redis.call('PEXPIREAT', KEYS[1], ARGV[4])
+return 0
@@ -0,0 +1,75 @@
+-- Same as verify-token.lua, for the compact format (REDIS_KEY_FORMAT 2).
+--
+-- KEYS[1]: token request (string: 1 byte tries, 6 bytes creation time in
+--          milliseconds, big endian, and the token)
+-- KEYS[2]: send claim of the same phone number
+-- KEYS[3]: optional, the token request in the original format, which is
+--          used when KEYS[1] doesn't exist
+-- KEYS[4]: optional, the send claim in the original format
+-- ARGV[1]: token to verify
+-- ARGV[2]: current time in milliseconds
+-- ARGV[3]: token validity in milliseconds
+-- ARGV[4]: maximum number of wrong tries
+--
+-- Returns the same as verify-token.lua.
+local function decode(s, first, last)
+    local n = 0
+    for i = first, last do
+        n = n * 256 + string.byte(s, i)
+    end
+    return n
+end
+
+local function encode(n, width)
+    local bytes = {}
+    for i = width, 1, -1 do
+        bytes[i] = n % 256
+        n = math.floor(n / 256)
+    end
+    return string.char(unpack(bytes))
+end
+
+local token, tries, created
+local value = redis.call('GET', KEYS[1])
+if value then
+    tries = string.byte(value, 1)
+    created = decode(value, 2, 7)
+    token = string.sub(value, 8)
+elseif KEYS[3] then
+    local fields = redis.call('HMGET', KEYS[3], 'token', 'tries', 'created')
+    if fields[1] then
+        token = fields[1]
+        tries = tonumber(fields[2]) or 0
+        created = tonumber(fields[3]) or 0
+    end
+end
+if not token then
+    return 1
+end
+
+local now = tonumber(ARGV[2])
+local validity = tonumber(ARGV[3])
+local maxTries = tonumber(ARGV[4])
+
+if now - created > validity then
+    redis.call('DEL', unpack(KEYS))
+    return 2
+end
+if tries > maxTries then
+    redis.call('DEL', unpack(KEYS))
+    return 4
+end
+if token == ARGV[1] then
+    redis.call('DEL', unpack(KEYS))
+    return 0
+end
+
+tries = tries + 1
+if tries > maxTries then
+    redis.call('DEL', unpack(KEYS))
+else
+    -- Always written in the compact format, which then hides the original.
+    redis.call('SET', KEYS[1], string.char(tries) .. encode(created, 6) .. token,
+        'PX', math.max(1, created + validity - now))
+end
+return 3
@@ -0,0 +1,41 @@
+-- Verify a token and update the token request atomically.
+--
+-- KEYS[1]: token request (hash with token, tries and created)
+-- KEYS[2]: send claim of the same phone number
+-- ARGV[1]: token to verify
+-- ARGV[2]: current time in milliseconds
+-- ARGV[3]: token validity in milliseconds
+-- ARGV[4]: maximum number of wrong tries
+--
+-- Returns 0 when the token is correct, 1 when there is no token request,
+-- 2 when it has expired, 3 when the token is wrong and 4 when there were too
+-- many wrong tries. The token request and the send claim are deleted unless
+-- 3 is returned and there are tries left.
+local fields = redis.call('HMGET', KEYS[1], 'token', 'tries', 'created')
+if not fields[1] then
+    return 1
+end
+local tries = tonumber(fields[2]) or 0
+local created = tonumber(fields[3]) or 0
+local maxTries = tonumber(ARGV[4])
+
+if tonumber(ARGV[2]) - created > tonumber(ARGV[3]) then
+    redis.call('DEL', KEYS[1], KEYS[2])
+    return 2
+end
+if tries > maxTries then
+    redis.call('DEL', KEYS[1], KEYS[2])
+    return 4
+end
+if fields[1] == ARGV[1] then
+    redis.call('DEL', KEYS[1], KEYS[2])
+    return 0
+end
+
+tries = tries + 1
+if tries > maxTries then
+    redis.call('DEL', KEYS[1], KEYS[2])
+else
+    redis.call('HSET', KEYS[1], 'tries', tries)
+end
+return 3
@@ -0,0 +1,95 @@
+package foundation.privacybydesign.sms.admission;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+    private static final long FAST = 1000000; // 1ms
+    private static final long SLOW = 2000000000; // 2s
+
+    @Test
+    public void testRejectsAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10, 1000);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire(1.0));
+        }
+        assertFalse(limiter.tryAcquire(1.0));
+        assertEquals(4, limiter.getInFlight());
+        assertEquals(1, limiter.getRejectedCount());
+
+        limiter.release(FAST, false);
+        assertTrue(limiter.tryAcquire(1.0));
+    }
+
+    @Test
+    public void testLowPriorityShare() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10, 1000);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(limiter.tryAcquire(0.8));
+        }
+        // Low priority requests are over their share, high priority ones
+        // can still get in.
+        assertFalse(limiter.tryAcquire(0.8));
+        assertTrue(limiter.tryAcquire(1.0));
+        assertTrue(limiter.tryAcquire(1.0));
+        assertFalse(limiter.tryAcquire(1.0));
+    }
+
+    @Test
+    public void testDecreasesOnSlowOrFailedRequests() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 10, 1000);
+        assertTrue(limiter.tryAcquire(1.0));
+        limiter.release(SLOW, false);
+        assertEquals(9, limiter.getLimit());
+        assertTrue(limiter.tryAcquire(1.0));
+        limiter.release(FAST, true);
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(1.0));
+            limiter.release(SLOW, false);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testDecreasesOncePerWindow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 10, 1000);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire(1.0));
+        }
+        // One spike slows down all requests in flight.
+        for (int i = 0; i < 10; i++) {
+            limiter.release(SLOW, false);
+        }
+        assertEquals(9, limiter.getLimit());
+
+        // The next slow request is in a new window.
+        assertTrue(limiter.tryAcquire(1.0));
+        limiter.release(SLOW, false);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void testIncreasesOnlyWhenUsed() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(1.0));
+            limiter.release(FAST, false);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < limiter.getLimit(); j++) {
+                assertTrue(limiter.tryAcquire(1.0));
+            }
+            for (int j = limiter.getInFlight(); j > 0; j--) {
+                limiter.release(FAST, false);
+            }
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+}
@@ -0,0 +1,67 @@
+package foundation.privacybydesign.sms.common;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class HmacTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private static byte[] expected(String input) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        return mac.doFinal(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCreateHmac() throws Exception {
+        Hmac hmac = new Hmac(KEY);
+        for (String input : new String[]{"", "+31612345678", "2001:db8::", "éèü", "+31612345678"}) {
+            assertEquals(Base64.getEncoder().encodeToString(expected(input)), hmac.createHmac(input).toString());
+        }
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        Hmac hmac = new Hmac(KEY);
+        StringBuilder longInput = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longInput.append(i);
+        }
+        byte[] out = new byte[Hmac.LENGTH + 2];
+        hmac.digest(longInput.toString(), out, 1);
+        assertArrayEquals(expected(longInput.toString()), Arrays.copyOfRange(out, 1, Hmac.LENGTH + 1));
+        assertEquals(0, out[0]);
+        assertEquals(0, out[Hmac.LENGTH + 1]);
+    }
+
+    @Test
+    public void testWords() throws Exception {
+        HmacDigest digest = new Hmac(KEY).createHmac("+31612345678");
+        byte[] bytes = expected("+31612345678");
+        for (int word = 0; word < 4; word++) {
+            long expected = 0;
+            for (int i = 0; i < 8; i++) {
+                expected = (expected << 8) | (bytes[word * 8 + i] & 0xFF);
+            }
+            assertEquals(expected, digest.word(word));
+        }
+        assertEquals(digest, HmacDigest.fromBase64(digest.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromBase64NotHmac() {
+        HmacDigest.fromBase64("cGhvbmU=");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDigestShortBuffer() {
+        new Hmac(KEY).digest("+31612345678", new byte[Hmac.LENGTH], 1);
+    }
+}
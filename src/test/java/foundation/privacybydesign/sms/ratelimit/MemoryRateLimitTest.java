@@ -0,0 +1,92 @@
+package foundation.privacybydesign.sms.ratelimit;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import foundation.privacybydesign.sms.snapshot.SnapshotJournal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the escalation of the rate limits.
+ */
+public class MemoryRateLimitTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = SECOND * 60;
+    private static final long HOUR = MINUTE * 60;
+    private static final long DAY = HOUR * 24;
+
+    private static final long START = 1700000000000L;
+
+    private static final Hmac HMAC = new Hmac(new byte[32]);
+
+    private static HmacDigest key(String input) {
+        return HMAC.createHmac(input);
+    }
+
+    @Test
+    public void testIPLimit() {
+        MemoryRateLimit limiter = new MemoryRateLimit();
+        // Three tries right away, then one every 10 seconds.
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone1"), START));
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone2"), START));
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone3"), START));
+        assertEquals(START + 10 * SECOND, limiter.checkAndCount(key("ip"), key("phone4"), START));
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone4"), START + 10 * SECOND));
+    }
+
+    @Test
+    public void testPhoneLimit() {
+        MemoryRateLimit limiter = new MemoryRateLimit();
+        long now = START;
+        long[] waits = { 10 * SECOND, 5 * MINUTE, 3 * HOUR, 24 * HOUR, 24 * HOUR, 24 * HOUR };
+        assertEquals(0, limiter.checkAndCount(key("ip0"), key("phone"), now));
+        for (int i = 0; i < waits.length; i++) {
+            assertEquals(now + waits[i], limiter.checkAndCount(key("ip" + i), key("phone"), now + 1));
+            now += waits[i];
+            assertEquals(0, limiter.checkAndCount(key("ip" + i), key("phone"), now));
+        }
+    }
+
+    @Test
+    public void testPhoneBonusTries() {
+        MemoryRateLimit limiter = new MemoryRateLimit();
+        long now = START;
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone"), now));
+        now += 10 * SECOND;
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone"), now));
+        now += 5 * MINUTE;
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone"), now));
+        // The next try would be 3 hours later, but after two quiet days the
+        // escalation goes back two steps: 5 minutes instead of 24 hours.
+        now += 2 * DAY;
+        assertEquals(0, limiter.checkAndCount(key("ip"), key("phone"), now));
+        assertEquals(now + 5 * MINUTE, limiter.checkAndCount(key("ip"), key("phone"), now + 1));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        long now = System.currentTimeMillis();
+        MemoryRateLimit limiter = new MemoryRateLimit();
+        try (SnapshotJournal journal = SnapshotJournal.create(path)) {
+            assertEquals(0, limiter.checkAndCount(key("ip"), key("phone"), now));
+            limiter.snapshot(journal, true);
+            assertEquals(0, limiter.checkAndCount(key("ip"), key("phone"), now + 10 * SECOND));
+            limiter.snapshot(journal, false);
+        }
+
+        // The budget is not reset by a restart.
+        MemoryRateLimit restored = new MemoryRateLimit();
+        SnapshotJournal.replay(path, restored::restore);
+        assertEquals(now + 10 * SECOND + 5 * MINUTE,
+                restored.checkAndCount(key("ip"), key("phone"), now + 11 * SECOND));
+    }
+}
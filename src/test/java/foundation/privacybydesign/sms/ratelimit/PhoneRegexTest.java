@@ -1,5 +1,7 @@
 package foundation.privacybydesign.sms.ratelimit;
 
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber;
 import foundation.privacybydesign.sms.SMSRestApi;
 import org.junit.Test;
 
@@ -69,4 +71,59 @@ public class PhoneRegexTest {
     public void testUS() throws InvalidPhoneNumberException {
         SMSRestApi.canonicalPhoneNumber("+12015550123");
     }
+
+    @Test()
+    public void testCached() throws InvalidPhoneNumberException {
+        assertEquals("+31612345678", SMSRestApi.canonicalPhoneNumber("+31 6 12345678"));
+        assertEquals("+31612345678", SMSRestApi.canonicalPhoneNumber("+31 6 12345678"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                SMSRestApi.canonicalPhoneNumber("+31712345678");
+                throw new AssertionError("landline accepted");
+            } catch (InvalidPhoneNumberException e) {
+                // expected, also when cached
+            }
+        }
+    }
+
+    /**
+     * The example numbers of every region are accepted the same as when
+     * they were checked against every allowed region in turn.
+     */
+    @Test()
+    public void testSameAsRegionLoop() {
+        String[] countries = {
+                "AT", "BE", "BG", "CY", "DK", "DE", "EE", "FI", "FR", "GR", "HU", "IE",
+                "IS", "IT", "HR", "LV", "LT", "LI", "LU", "MT", "MC", "NL", "NO",
+                "PL", "PT", "RO", "SI", "SK", "ES", "CZ", "GB", "SE", "CH"
+        };
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+        for (String region : util.getSupportedRegions()) {
+            for (PhoneNumberUtil.PhoneNumberType type : PhoneNumberUtil.PhoneNumberType.values()) {
+                Phonenumber.PhoneNumber number = util.getExampleNumberForType(region, type);
+                if (number == null) {
+                    continue;
+                }
+                String expected = null;
+                for (String country : countries) {
+                    if (util.isValidNumberForRegion(number, country)) {
+                        PhoneNumberUtil.PhoneNumberType numberType = util.getNumberType(number);
+                        if (numberType == PhoneNumberUtil.PhoneNumberType.MOBILE ||
+                                numberType == PhoneNumberUtil.PhoneNumberType.FIXED_LINE_OR_MOBILE ||
+                                numberType == PhoneNumberUtil.PhoneNumberType.UNKNOWN)
+                            expected = util.format(number, PhoneNumberUtil.PhoneNumberFormat.E164);
+                        break;
+                    }
+                }
+                String e164 = util.format(number, PhoneNumberUtil.PhoneNumberFormat.E164);
+                String actual;
+                try {
+                    actual = SMSRestApi.canonicalPhoneNumber(e164);
+                } catch (InvalidPhoneNumberException e) {
+                    actual = null;
+                }
+                assertEquals(region + " " + type + " " + e164, expected, actual);
+            }
+        }
+    }
 }
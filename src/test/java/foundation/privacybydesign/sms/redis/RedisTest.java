@@ -0,0 +1,39 @@
+package foundation.privacybydesign.sms.redis;
+
+import foundation.privacybydesign.sms.common.HmacDigest;
+import org.junit.Test;
+import redis.clients.jedis.HostAndPort;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RedisTest {
+    @Test
+    public void testParseNodes() {
+        assertEquals(Set.of(new HostAndPort("redis-1", 6379), new HostAndPort("redis-2", 6380)),
+                Redis.parseNodes("redis-1:6379, redis-2:6380,"));
+    }
+
+    @Test
+    public void testScriptSha() {
+        // Same as the SHA-1 that SCRIPT LOAD returns.
+        assertEquals("e0e1f9fabfc9d4800c877a703b823ac0578ff8db", new RedisScript("return 1").getSha());
+    }
+
+    @Test
+    public void testCompactKey() {
+        byte[] hmac = new byte[32];
+        Arrays.fill(hmac, (byte) '}');
+        byte[] key = Redis.createCompactKey('T', HmacDigest.fromBase64(Base64.getEncoder().encodeToString(hmac)));
+        byte[] namespace = Redis.createNamespace("").getBytes();
+        // The prefix without the namespace separator, the tag and the raw HMAC.
+        assertEquals(namespace.length + 32, key.length);
+        assertArrayEquals(Arrays.copyOf(namespace, namespace.length - 1), Arrays.copyOf(key, namespace.length - 1));
+        assertEquals('T', key[namespace.length - 1]);
+        assertArrayEquals(hmac, Arrays.copyOfRange(key, namespace.length, key.length));
+    }
+}
@@ -0,0 +1,46 @@
+package foundation.privacybydesign.sms.smssender;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the retry budget limits retries to a fraction of the messages.
+ */
+public class RetryBudgetTest {
+    @Test
+    public void testInitialBudget() {
+        RetryBudget budget = new RetryBudget(0.1, 2);
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testRatio() {
+        RetryBudget budget = new RetryBudget(0.1, 2);
+        budget.tryWithdraw();
+        budget.tryWithdraw();
+
+        int retries = 0;
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+            if (budget.tryWithdraw()) {
+                retries++;
+            }
+        }
+        // Allow for floating point rounding in the deposits.
+        assertTrue(retries >= 9 && retries <= 10);
+    }
+
+    @Test
+    public void testMaximum() {
+        RetryBudget budget = new RetryBudget(0.5, 2);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertEquals(2, budget.getTokens(), 0.0001);
+    }
+}
@@ -0,0 +1,53 @@
+package foundation.privacybydesign.sms.smssender;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Test that only messages that certainly weren't sent are retried.
+ */
+public class RetryingSenderTest {
+    private static class FakeSender extends Sender {
+        final IOException error;
+        int attempts = 0;
+
+        FakeSender(IOException error) {
+            this.error = error;
+        }
+
+        @Override
+        protected void sendMessage(String phone, String message) throws IOException {
+            attempts++;
+            if (attempts == 1) {
+                throw error;
+            }
+        }
+    }
+
+    @Test
+    public void testRetriesMessageNotSent() throws IOException {
+        FakeSender fake = new FakeSender(new MessageNotSentException("connection refused"));
+        RetryingSender sender = new RetryingSender(fake, 3, 0, new RetryBudget(1, 10), false);
+
+        sender.sendMessage("+31612345678", "message");
+        assertEquals(2, fake.attempts);
+    }
+
+    @Test
+    public void testReadTimeoutIsNotRetried() {
+        FakeSender fake = new FakeSender(new HttpTimeoutException("request timed out"));
+        RetryingSender sender = new RetryingSender(fake, 3, 0, new RetryBudget(1, 10), false);
+
+        try {
+            sender.sendMessage("+31612345678", "message");
+            fail("read timeout should be passed on");
+        } catch (IOException e) {
+            assertEquals(1, fake.attempts);
+        }
+    }
+}
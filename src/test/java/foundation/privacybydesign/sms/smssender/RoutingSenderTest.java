@@ -0,0 +1,124 @@
+package foundation.privacybydesign.sms.smssender;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test failover and the circuit breaker of the routing sender.
+ */
+public class RoutingSenderTest {
+    private static class FakeSender extends Sender {
+        boolean failing;
+        boolean timingOut;
+        int sent = 0;
+
+        FakeSender(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        protected void sendMessage(String phone, String message) throws IOException {
+            if (failing) {
+                throw new MessageNotSentException("gateway down");
+            }
+            if (timingOut) {
+                // The gateway may have accepted the message already.
+                throw new HttpTimeoutException("request timed out");
+            }
+            sent++;
+        }
+    }
+
+    @Test
+    public void testFailover() throws IOException {
+        FakeSender primary = new FakeSender(true);
+        FakeSender secondary = new FakeSender(false);
+        RoutingSender sender = new RoutingSender(Arrays.asList("primary", "secondary"),
+                Arrays.asList(primary, secondary));
+
+        sender.sendMessage("+31612345678", "message");
+        assertEquals(1, secondary.sent);
+    }
+
+    @Test
+    public void testReadTimeoutDoesNotFailOver() {
+        FakeSender primary = new FakeSender(false);
+        primary.timingOut = true;
+        FakeSender secondary = new FakeSender(false);
+        RoutingSender sender = new RoutingSender(Arrays.asList("primary", "secondary"),
+                Arrays.asList(primary, secondary));
+
+        try {
+            sender.sendMessage("+31612345678", "message");
+            fail("read timeout should be passed on");
+        } catch (IOException e) {
+            assertTrue(e instanceof HttpTimeoutException);
+        }
+        assertEquals(0, secondary.sent);
+    }
+
+    @Test
+    public void testHedgeOnlyWithinDedupeGroup() {
+        RoutingSender sender = new RoutingSender(Arrays.asList("a", "b", "c"),
+                Arrays.asList(new FakeSender(false), new FakeSender(false), new FakeSender(false)),
+                Arrays.asList("rest", null, "rest"));
+        List<RoutingSender.Backend> backends = sender.getBackends();
+
+        assertTrue(sender.canHedge());
+        assertSame(backends.get(2), sender.selectHedge(backends.get(0)));
+        assertNull(sender.selectHedge(backends.get(1)));
+        assertFalse(new RoutingSender(Arrays.asList("a", "b"),
+                Arrays.asList(new FakeSender(false), new FakeSender(false))).canHedge());
+    }
+
+    @Test
+    public void testPrefersHealthyBackend() throws IOException {
+        FakeSender primary = new FakeSender(true);
+        FakeSender secondary = new FakeSender(false);
+        RoutingSender sender = new RoutingSender(Arrays.asList("primary", "secondary"),
+                Arrays.asList(primary, secondary));
+
+        sender.sendMessage("+31612345678", "message");
+        primary.failing = false;
+        sender.sendMessage("+31612345678", "message");
+        assertEquals(0, primary.sent);
+        assertEquals(2, secondary.sent);
+    }
+
+    @Test
+    public void testCircuitBreakerOpens() {
+        RoutingSender sender = new RoutingSender(Arrays.asList("primary"),
+                Arrays.asList(new FakeSender(true)));
+
+        for (int i = 0; i < RoutingSender.MIN_SAMPLES; i++) {
+            try {
+                sender.sendMessage("+31612345678", "message");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        RoutingSender.Backend backend = sender.getBackends().get(0);
+        assertTrue(backend.isOpen());
+        assertFalse(backend.isAvailable(System.currentTimeMillis()));
+        // The trial message after the open period is allowed through.
+        assertTrue(backend.isAvailable(System.currentTimeMillis() + RoutingSender.OPEN_DURATION));
+    }
+
+    @Test(expected = IOException.class)
+    public void testAllBackendsFailing() throws IOException {
+        RoutingSender sender = new RoutingSender(Arrays.asList("a", "b"),
+                Arrays.asList(new FakeSender(true), new FakeSender(true)));
+        sender.sendMessage("+31612345678", "message");
+    }
+}
@@ -0,0 +1,97 @@
+package foundation.privacybydesign.sms.smssender;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the queueing and overflow behaviour of the SMS dispatcher.
+ */
+public class SMSDispatcherTest {
+    /**
+     * Sender that blocks until released, so the queue can be filled up.
+     */
+    private static class BlockingSender extends Sender {
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int sent = 0;
+
+        @Override
+        protected void sendMessage(String phone, String message) {
+        }
+
+        @Override
+        public void send(String language, String phone, String token) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (this) {
+                sent++;
+            }
+        }
+    }
+
+    @Test
+    public void testDrainsQueue() throws Exception {
+        BlockingSender sender = new BlockingSender();
+        SMSDispatcher dispatcher = new SMSDispatcher(sender, 2, 10, "reject");
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch("en", "+31612345678", "ABCDEF");
+        }
+        sender.release.countDown();
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+        assertEquals(5, sender.sent);
+        assertEquals(5, dispatcher.getSentCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        BlockingSender sender = new BlockingSender();
+        SMSDispatcher dispatcher = new SMSDispatcher(sender, 1, 1, "reject");
+        int rejected = 0;
+        for (int i = 0; i < 5; i++) {
+            try {
+                dispatcher.dispatch("en", "+31612345678", "ABCDEF");
+            } catch (DispatchRejectedException e) {
+                rejected++;
+            }
+        }
+        // One message is being sent by the worker, one is waiting in the queue.
+        assertTrue(rejected >= 3);
+        assertEquals(rejected, dispatcher.getRejectedCount());
+        sender.release.countDown();
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFailureCallback() throws Exception {
+        Sender failing = new Sender() {
+            @Override
+            protected void sendMessage(String phone, String message) {
+            }
+
+            @Override
+            public void send(String language, String phone, String token) throws IOException {
+                throw new IOException("gateway down");
+            }
+        };
+        SMSDispatcher dispatcher = new SMSDispatcher(failing, 1, 10, "reject");
+        CountDownLatch failed = new CountDownLatch(1);
+        dispatcher.dispatch("en", "+31612345678", "ABCDEF", failed::countDown);
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+        assertEquals(1, dispatcher.getFailedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOverflowPolicy() {
+        new SMSDispatcher(new BlockingSender(), 1, 1, "drop-everything");
+    }
+}
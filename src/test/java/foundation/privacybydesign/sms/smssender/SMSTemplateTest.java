@@ -0,0 +1,43 @@
+package foundation.privacybydesign.sms.smssender;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class SMSTemplateTest {
+    private static final String PHONE = "+31612345678";
+    private static final String TOKEN = "A1B2C3";
+
+    private static void assertSameAsFormat(String template) {
+        assertEquals(String.format(template, TOKEN, PHONE + ":" + TOKEN),
+                SMSTemplate.compile(template).render(TOKEN, PHONE));
+    }
+
+    @Test
+    public void testRenderMatchesFormat() {
+        assertSameAsFormat("Code: %s");
+        assertSameAsFormat("Code: %s, link: https://example.com/#!verify:%s");
+        assertSameAsFormat("Link: %2$s (code %1$s), 100%% free%n");
+        assertSameAsFormat("No arguments");
+        assertSameAsFormat("");
+    }
+
+    @Test
+    public void testUnsupportedConversionFallsBack() {
+        assertSameAsFormat("Code: %-10s!");
+        assertSameAsFormat("Code: %S");
+    }
+
+    @Test
+    public void testFormEncodingMatchesURLEncoder() throws Exception {
+        String[] inputs = { "", "abc XYZ 019", ".-*_~+&=%/:", "Vérificatiecode €5 😀", "\uD800x" };
+        for (String input : inputs) {
+            byte[] encoded = FormEncoding.encode(input);
+            assertEquals(URLEncoder.encode(input, "UTF-8"), new String(encoded, StandardCharsets.US_ASCII));
+            assertEquals(encoded.length, FormEncoding.encodedLength(input));
+        }
+    }
+}
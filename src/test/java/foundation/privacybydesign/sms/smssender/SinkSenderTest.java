@@ -0,0 +1,87 @@
+package foundation.privacybydesign.sms.smssender;
+
+import com.google.gson.Gson;
+import foundation.privacybydesign.sms.SinkConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SinkSenderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SinkConfiguration configuration(String json) {
+        return new Gson().fromJson(json, SinkConfiguration.class);
+    }
+
+    private static String readUntilNul(File file) throws IOException {
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        int end = content.indexOf('\0');
+        return end < 0 ? content : content.substring(0, end);
+    }
+
+    @Test
+    public void testCountOnly() throws IOException {
+        SinkSender sender = new SinkSender(configuration("{}"));
+        sender.sendMessage("+31612345678", "hello", "ref");
+        sender.sendMessage("+31612345678", "hello", "ref");
+        assertEquals(2, sender.getSentCount());
+    }
+
+    @Test
+    public void testErrorRate() {
+        SinkSender sender = new SinkSender(configuration("{\"error_rate\": 1}"));
+        try {
+            sender.sendMessage("+31612345678", "hello", "ref");
+            fail("expected a simulated error");
+        } catch (MessageNotSentException e) {
+            // expected
+        } catch (IOException e) {
+            fail("expected the message not to be sent");
+        }
+        assertEquals(0, sender.getSentCount());
+        assertEquals(1, sender.getFailedCount());
+    }
+
+    @Test
+    public void testUnknownOutcome() {
+        SinkSender sender = new SinkSender(configuration("{\"error_rate\": 1, \"error_not_sent\": false}"));
+        try {
+            sender.sendMessage("+31612345678", "hello", "ref");
+            fail("expected a simulated error");
+        } catch (IOException e) {
+            assertFalse(e instanceof MessageNotSentException);
+        }
+        assertEquals(1, sender.getFailedCount());
+    }
+
+    @Test
+    public void testWritesAndRotates() throws IOException {
+        File file = new File(folder.getRoot(), "sink.log");
+        SinkSender sender = new SinkSender(configuration("{\"path\": \"" + file.getPath()
+                + "\", \"file_size\": 200, \"files\": 1}"));
+
+        sender.sendMessage("+31612345678", "code: 123\ntab\there", "ref-1");
+        String line = readUntilNul(file);
+        assertTrue(line.endsWith("\t+31612345678\tref-1\tcode: 123\\ntab\\there\n"));
+
+        for (int i = 0; i < 5; i++) {
+            sender.sendMessage("+31612345678", "message " + i, "ref");
+        }
+        File rotated = new File(file.getPath() + ".1");
+        assertTrue(rotated.exists());
+        assertFalse(new File(file.getPath() + ".2").exists());
+        // The rotated file is truncated to the messages it contains.
+        assertFalse(new String(Files.readAllBytes(rotated.toPath()), StandardCharsets.UTF_8).contains("\0"));
+    }
+}
@@ -0,0 +1,82 @@
+package foundation.privacybydesign.sms.snapshot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SnapshotJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> replay(Path path) throws Exception {
+        List<String> records = new ArrayList<>();
+        SnapshotJournal.replay(path, (type, key, text, a, b) ->
+                records.add(type + " " + key + " " + text + " " + a + " " + b));
+        return records;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        assertEquals(0, SnapshotJournal.replay(path, (type, key, text, a, b) -> { }));
+
+        try (SnapshotJournal journal = SnapshotJournal.create(path)) {
+            journal.append(SnapshotJournal.TOKEN, "key1", "ABCDEF", 1, 1700000000000L);
+            journal.append(SnapshotJournal.CLAIM_REMOVED, "key2", null, 0, 0);
+        }
+        List<String> records = replay(path);
+        assertEquals(2, records.size());
+        assertEquals("1 key1 ABCDEF 1 1700000000000", records.get(0));
+        assertEquals("4 key2 null 0 0", records.get(1));
+    }
+
+    @Test
+    public void testGrow() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        try (SnapshotJournal journal = SnapshotJournal.create(path)) {
+            for (int i = 0; i < 50000; i++) {
+                journal.append(SnapshotJournal.IP_LIMIT, "some-ip-address-hash-" + i, null, i, 0);
+            }
+        }
+        List<String> records = replay(path);
+        assertEquals(50000, records.size());
+        assertEquals("5 some-ip-address-hash-49999 null 49999 0", records.get(49999));
+    }
+
+    @Test
+    public void testDamagedRecord() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        int size;
+        try (SnapshotJournal journal = SnapshotJournal.create(path)) {
+            journal.append(SnapshotJournal.TOKEN, "key1", "ABCDEF", 0, 0);
+            size = journal.size();
+            journal.append(SnapshotJournal.TOKEN, "key2", "ABCDEF", 0, 0);
+            journal.append(SnapshotJournal.TOKEN, "key3", "ABCDEF", 0, 0);
+        }
+        // Damage the second record, as if writing it was interrupted.
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(size + 8);
+            file.write('x');
+        }
+        List<String> records = replay(path);
+        assertEquals(1, records.size());
+        assertEquals("1 key1 ABCDEF 0 0", records.get(0));
+    }
+
+    @Test
+    public void testNullText() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        try (SnapshotJournal journal = SnapshotJournal.create(path)) {
+            journal.append(SnapshotJournal.CLAIM, "key", null, 5, 0);
+        }
+        SnapshotJournal.replay(path, (type, key, text, a, b) -> assertNull(text));
+    }
+}
@@ -0,0 +1,134 @@
+package foundation.privacybydesign.sms.tokens;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactTokenRequestRepositoryTest {
+    private static final Hmac HMAC = new Hmac(new byte[32]);
+
+    private static HmacDigest key(String phone) {
+        return HMAC.createHmac(phone);
+    }
+
+    @Test
+    public void testPackToken() {
+        assertEquals(0, CompactTokenRequestRepository.packToken("WWWWWW"));
+        assertEquals((1 << 30) - 1, CompactTokenRequestRepository.packToken("VVVVVV"));
+        assertEquals("ABCDEF", CompactTokenRequestRepository.unpackToken(
+                CompactTokenRequestRepository.packToken("ABCDEF")));
+        assertEquals(-1, CompactTokenRequestRepository.packToken("ABCDE"));
+        assertEquals(-1, CompactTokenRequestRepository.packToken("ABCDEO"));
+        assertEquals(-1, CompactTokenRequestRepository.packToken("abcdef"));
+    }
+
+    @Test
+    public void testStoreRetrieve() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 1000);
+        assertNull(repo.retrieve(key("phone")));
+        long created = System.currentTimeMillis();
+        repo.store(key("phone"), new TokenRequest("ABCDEF", 2, created));
+        TokenRequest request = repo.retrieve(key("phone"));
+        assertEquals("ABCDEF", request.token);
+        assertEquals(2, request.tries);
+        assertEquals(created / 1000, request.created / 1000);
+        repo.remove(key("phone"));
+        assertNull(repo.retrieve(key("phone")));
+    }
+
+    @Test
+    public void testClaim() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 1000);
+        assertTrue(repo.claim(key("phone"), 50));
+        assertFalse(repo.claim(key("phone"), 50));
+        assertTrue(repo.claim(key("other"), 50));
+
+        Thread.sleep(60);
+        assertTrue(repo.claim(key("phone"), 50));
+
+        repo.releaseClaim(key("phone"));
+        assertTrue(repo.claim(key("phone"), 10000));
+        repo.remove(key("phone"));
+        assertTrue(repo.claim(key("phone"), 10000));
+    }
+
+    @Test
+    public void testVerifyReleasesClaim() {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 1000);
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        assertTrue(repo.claim(key("phone"), 10000));
+        for (int i = 0; i < TokenManager.MAX_TRIES; i++) {
+            assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        }
+        assertFalse(repo.claim(key("phone"), 10000));
+        // The last wrong try removes the token request, and with it the claim.
+        assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        assertTrue(repo.claim(key("phone"), 10000));
+
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        assertEquals(VerificationResult.EXPIRED, repo.verify(key("phone"), "ABCDEF", -1));
+        assertTrue(repo.claim(key("phone"), 10000));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 1000);
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "invalid", 60000));
+        assertEquals(VerificationResult.OK, repo.verify(key("phone"), "ABCDEF", 60000));
+        // A token can only be used once.
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testVerifyTooManyTries() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 1000);
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        for (int i = 0; i <= TokenManager.MAX_TRIES; i++) {
+            assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        }
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testVerifyExpired() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 1000);
+        repo.store(key("phone"), new TokenRequest("ABCDEF", 0, System.currentTimeMillis() - 120000));
+        assertNotEquals(VerificationResult.OK, repo.verify(key("phone"), "ABCDEF", 60000));
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 100);
+        for (int i = 0; i < 1000; i++) {
+            repo.store(key("phone" + i), new TokenRequest("ABCDEF"));
+        }
+        assertTrue(repo.size() <= 100);
+        // The most recent token is kept.
+        assertEquals(VerificationResult.OK, repo.verify(key("phone999"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        CompactTokenRequestRepository repo = new CompactTokenRequestRepository(60000, 100000);
+        for (int i = 0; i < 10000; i++) {
+            repo.store(key("phone" + i), new TokenRequest("ABCDEF"));
+        }
+        repo.removeExpired();
+        assertEquals(10000, repo.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(VerificationResult.OK, repo.verify(key("phone" + i), "ABCDEF", 60000));
+        }
+        assertEquals(0, repo.size());
+    }
+}
@@ -0,0 +1,137 @@
+package foundation.privacybydesign.sms.tokens;
+
+import foundation.privacybydesign.sms.common.Hmac;
+import foundation.privacybydesign.sms.common.HmacDigest;
+import foundation.privacybydesign.sms.snapshot.SnapshotJournal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryTokenRequestRepositoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Hmac HMAC = new Hmac(new byte[32]);
+
+    private static HmacDigest key(String phone) {
+        return HMAC.createHmac(phone);
+    }
+
+    @Test
+    public void testClaim() throws InterruptedException {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        assertTrue(repo.claim(key("phone"), 50));
+        assertFalse(repo.claim(key("phone"), 50));
+        assertTrue(repo.claim(key("other"), 50));
+
+        Thread.sleep(60);
+        assertTrue(repo.claim(key("phone"), 50));
+    }
+
+    @Test
+    public void testReleaseClaim() {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        assertTrue(repo.claim(key("phone"), 10000));
+        repo.releaseClaim(key("phone"));
+        assertTrue(repo.claim(key("phone"), 10000));
+
+        // Verifying the token removes it, and with it the claim.
+        repo.remove(key("phone"));
+        assertTrue(repo.claim(key("phone"), 10000));
+    }
+
+    @Test
+    public void testVerifyReleasesClaim() {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        assertTrue(repo.claim(key("phone"), 10000));
+        for (int i = 0; i < TokenManager.MAX_TRIES; i++) {
+            assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        }
+        assertFalse(repo.claim(key("phone"), 10000));
+        // The last wrong try removes the token request, and with it the claim.
+        assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        assertTrue(repo.claim(key("phone"), 10000));
+
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        assertEquals(VerificationResult.EXPIRED, repo.verify(key("phone"), "ABCDEF", -1));
+        assertTrue(repo.claim(key("phone"), 10000));
+    }
+
+    @Test
+    public void testVerify() {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        assertEquals(VerificationResult.OK, repo.verify(key("phone"), "ABCDEF", 60000));
+        // A token can only be used once.
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testVerifyTooManyTries() {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        repo.store(key("phone"), new TokenRequest("ABCDEF"));
+        for (int i = 0; i <= TokenManager.MAX_TRIES; i++) {
+            assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone"), "ABCDEG", 60000));
+        }
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testVerifyExpired() {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        repo.store(key("phone"), new TokenRequest("ABCDEF", 0, System.currentTimeMillis() - 120000));
+        assertNotEquals(VerificationResult.OK, repo.verify(key("phone"), "ABCDEF", 60000));
+        assertEquals(VerificationResult.NOT_FOUND, repo.verify(key("phone"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 1000);
+        repo.store(key("phone1"), new TokenRequest("ABCDEF"));
+        repo.store(key("phone2"), new TokenRequest("ABCDEF"));
+        repo.store(key("expired"), new TokenRequest("ABCDEF", 0, System.currentTimeMillis() - 120000));
+        try (SnapshotJournal journal = SnapshotJournal.create(path)) {
+            repo.snapshot(journal, true);
+            // Only the changes are appended.
+            assertEquals(VerificationResult.WRONG_TOKEN, repo.verify(key("phone1"), "ABCDEG", 60000));
+            assertEquals(VerificationResult.OK, repo.verify(key("phone2"), "ABCDEF", 60000));
+            assertTrue(repo.claim(key("phone3"), 10000));
+            int size = journal.size();
+            repo.snapshot(journal, false);
+            assertTrue(journal.size() > size);
+            size = journal.size();
+            repo.snapshot(journal, false);
+            assertEquals(size, journal.size());
+        }
+
+        InMemoryTokenRequestRepository restored = new InMemoryTokenRequestRepository(60000, 1000);
+        SnapshotJournal.replay(path, restored::restore);
+        assertEquals(1, restored.retrieve(key("phone1")).tries);
+        assertEquals(null, restored.retrieve(key("phone2")));
+        assertEquals(null, restored.retrieve(key("expired")));
+        assertFalse(restored.claim(key("phone3"), 10000));
+        assertEquals(VerificationResult.OK, restored.verify(key("phone1"), "ABCDEF", 60000));
+    }
+
+    @Test
+    public void testBounded() {
+        InMemoryTokenRequestRepository repo = new InMemoryTokenRequestRepository(60000, 100);
+        for (int i = 0; i < 1000; i++) {
+            repo.store(key("phone" + i), new TokenRequest("ABCDEF"));
+        }
+        repo.removeExpired();
+        assertTrue(repo.size() <= 100);
+    }
+}
@@ -0,0 +1,23 @@
+package foundation.privacybydesign.sms.tokens;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RedisTokenRequestRepositoryTest {
+    @Test
+    public void testCompactEncoding() {
+        TokenRequest request = new TokenRequest("ABCDEF", 2, 1700000000123L);
+        byte[] value = RedisTokenRequestRepository.encode(request);
+        // Tries, the creation time in 6 bytes big endian and the token, as
+        // read by verify-token-compact.lua.
+        assertArrayEquals(new byte[]{2, 0x01, (byte) 0x8b, (byte) 0xcf, (byte) 0xe5, 0x68, 0x7b,
+                'A', 'B', 'C', 'D', 'E', 'F'}, value);
+
+        TokenRequest decoded = RedisTokenRequestRepository.decode(value);
+        assertEquals("ABCDEF", decoded.token);
+        assertEquals(2, decoded.tries);
+        assertEquals(1700000000123L, decoded.created);
+    }
+}